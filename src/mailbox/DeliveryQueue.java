@@ -0,0 +1,351 @@
+package mailbox;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import net.EventLog;
+
+/**
+ * Bounded queue of messages waiting to be delivered to their recipients' mailboxes. A message is queued once its
+ * content is complete in a spool file; the list of recipients is saved next to it (<code>.rcpt</code>), so messages
+ * still queued when the server stops are delivered once it starts again. A fixed pool of worker threads delivers the
+ * queued messages, retrying recipients whose delivery failed with an increasing delay, and deletes the spool file once
+ * the message is durable in every mailbox.
+ * <p>
+ * The number of queued messages is limited by the queue capacity: once it is reached, new messages are refused with
+ * <code>QueueFullException</code>, so the senders retry later instead of the spool growing without bound. Statistics
+ * are available through <code>DeliveryQueueMXBean</code>.
+ */
+public class DeliveryQueue {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+    public static final int DEFAULT_WORKERS = 4;
+    public static final int MAX_ATTEMPTS = 5;
+    public static final long RETRY_DELAY = 1000;
+    private static final String RECIPIENTS_SUFFIX = ".rcpt";
+    private static final String FAILED_SUFFIX = ".failed";
+
+    private static int capacity = DEFAULT_CAPACITY;
+    private static Semaphore slots = null;
+    private static ScheduledExecutorService workers = null;
+    private static final Statistics statistics = new Statistics();
+
+    private static final AtomicLong enqueued = new AtomicLong();
+    private static final AtomicLong delivered = new AtomicLong();
+    private static final AtomicLong retries = new AtomicLong();
+    private static final AtomicLong rejected = new AtomicLong();
+    private static final AtomicLong failed = new AtomicLong();
+    private static final AtomicLong totalLatency = new AtomicLong();
+    private static final AtomicLong maxLatency = new AtomicLong();
+
+    private DeliveryQueue() {
+    }
+
+    /**
+     * Starts the delivery workers, and queues the messages left in the spool directory by a previous execution. Has no
+     * effect if the queue is already started.
+     *
+     * @param queueCapacity The maximum number of queued messages.
+     * @param workerCount   The number of delivery worker threads.
+     */
+    public static synchronized void start(int queueCapacity, int workerCount) {
+        if (workers != null)
+            return;
+        capacity = queueCapacity;
+        slots = new Semaphore(queueCapacity);
+        AtomicInteger threads = new AtomicInteger();
+        workers = new ScheduledThreadPoolExecutor(workerCount, task -> {
+            Thread thread = new Thread(task, "delivery-" + threads.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(statistics,
+                    new ObjectName("mailbox:type=DeliveryQueue"));
+        } catch (JMException e) {
+            // Statistics are not available through JMX, delivery is not affected
+        }
+        recover();
+    }
+
+    private static synchronized void ensureStarted() {
+        if (workers == null)
+            start(DEFAULT_CAPACITY, DEFAULT_WORKERS);
+    }
+
+    /**
+     * Returns the statistics of the queue, which are also available through JMX.
+     */
+    public static DeliveryQueueMXBean getStatistics() {
+        ensureStarted();
+        return statistics;
+    }
+
+    /**
+     * Checks if the queue has room for another message, without reserving it. Used to refuse a message before its
+     * content is received.
+     *
+     * @return true if the queue is full, and false otherwise.
+     */
+    public static boolean isFull() {
+        ensureStarted();
+        return slots.availablePermits() == 0;
+    }
+
+    /**
+     * Reserves room in the queue for a message.
+     *
+     * @throws QueueFullException If the queue is full.
+     */
+    static void reserve() throws QueueFullException {
+        ensureStarted();
+        if (!slots.tryAcquire()) {
+            rejected.incrementAndGet();
+            throw new QueueFullException();
+        }
+    }
+
+    /**
+     * Releases room reserved with <code>reserve()</code> for a message that was not queued after all.
+     */
+    static void release() {
+        slots.release();
+    }
+
+    /**
+     * Saves the list of recipients of a spooled message, so it can be queued again after a restart.
+     *
+     * @param spoolFile  The spool file with the content of the message.
+     * @param recipients The recipients' addresses.
+     * @return The file with the list of recipients.
+     * @throws IOException If the file cannot be written.
+     */
+    static File saveRecipients(File spoolFile, List<String> recipients) throws IOException {
+        File file = recipientsFile(spoolFile);
+        File temp = new File(file.getPath() + ".tmp");
+        try (PrintWriter out = new PrintWriter(temp, StandardCharsets.UTF_8)) {
+            for (String recipient : recipients)
+                out.print(recipient + "\n");
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return file;
+    }
+
+    /**
+     * Queues a spooled message for delivery. Room in the queue must have been reserved with <code>reserve()</code>.
+     *
+     * @param spoolFile  The spool file with the content of the message, which is deleted once it is delivered.
+     * @param recipients The recipients' addresses.
+     */
+    static void submit(File spoolFile, List<String> recipients) {
+        enqueued.incrementAndGet();
+        workers.execute(new Delivery(spoolFile, recipients));
+    }
+
+    /**
+     * Queues the messages that were spooled but not yet delivered when the server stopped. Spool files without a list
+     * of recipients were not complete, and are deleted. Messages that could not be delivered (<code>.failed</code>)
+     * are left alone.
+     */
+    private static void recover() {
+        File[] files = Mailbox.SPOOL_DIRECTORY.listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(RECIPIENTS_SUFFIX) || name.endsWith(FAILED_SUFFIX))
+                continue;
+            File recipients = recipientsFile(file);
+            if (!recipients.isFile()) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+                continue;
+            }
+            List<String> users = new ArrayList<>();
+            try (BufferedReader reader = new BufferedReader(new FileReader(recipients, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.isEmpty())
+                        users.add(line);
+                }
+            } catch (IOException e) {
+                continue;
+            }
+            // Recovered messages are queued even beyond the capacity, they were already accepted
+            slots.tryAcquire();
+            submit(file, users);
+        }
+    }
+
+    private static File recipientsFile(File spoolFile) {
+        return new File(spoolFile.getPath() + RECIPIENTS_SUFFIX);
+    }
+
+    /**
+     * A queued message, with the recipients it was not yet delivered to.
+     */
+    private static class Delivery implements Runnable {
+
+        private final File spoolFile;
+        private List<String> remaining;
+        private final long queued = System.currentTimeMillis();
+        private int attempts = 0;
+
+        Delivery(File spoolFile, List<String> recipients) {
+            this.spoolFile = spoolFile;
+            this.remaining = recipients;
+        }
+
+        @Override
+        public void run() {
+            attempts++;
+            List<String> failedRecipients = new ArrayList<>();
+            List<CompletableFuture<Void>> commits = new ArrayList<>();
+            List<String> committing = new ArrayList<>();
+            for (String user : remaining) {
+                try {
+                    commits.add(new Mailbox(user).deliver(spoolFile.toPath()));
+                    committing.add(user);
+                } catch (Mailbox.InvalidUserException e) {
+                    // The user was removed since the message was accepted, the message cannot be delivered
+                    EventLog.log(EventLog.Level.WARN, "smtp", 0, null, "unknown-recipient",
+                            spoolFile.getName() + " " + user, EventLog.NO_CODE, null);
+                } catch (IOException e) {
+                    failedRecipients.add(user);
+                }
+            }
+            for (int i = 0; i < commits.size(); i++) {
+                try {
+                    GroupCommit.await(commits.get(i));
+                } catch (IOException e) {
+                    // Already in the mailbox (and counted in its usage), delivering it again would duplicate it
+                    EventLog.log(EventLog.Level.ERROR, "smtp", 0, null, "commit-failed",
+                            spoolFile.getName() + " " + committing.get(i), EventLog.NO_CODE, e);
+                }
+            }
+
+            if (failedRecipients.isEmpty()) {
+                finish();
+                delivered.incrementAndGet();
+                long latency = System.currentTimeMillis() - queued;
+                totalLatency.addAndGet(latency);
+                maxLatency.accumulateAndGet(latency, Math::max);
+                return;
+            }
+            if (attempts >= MAX_ATTEMPTS) {
+                EventLog.log(EventLog.Level.ERROR, "smtp", 0, null, "delivery-failed",
+                        spoolFile.getName() + " " + failedRecipients, EventLog.NO_CODE, null);
+                giveUp(failedRecipients);
+                return;
+            }
+            remaining = failedRecipients;
+            try {
+                // Recipients that already have the message are not delivered again after a restart
+                saveRecipients(spoolFile, remaining);
+            } catch (IOException e) {
+                // The previous list is still valid, some recipients may get the message twice after a restart
+            }
+            retries.incrementAndGet();
+            workers.schedule(this, RETRY_DELAY << (attempts - 1), TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Keeps the message in the spool directory for the administrator, renamed with the <code>.failed</code>
+         * suffix together with the recipients it could not be delivered to, so it is not queued again after a
+         * restart, nor deleted as an incomplete spool file.
+         */
+        private void giveUp(List<String> recipients) {
+            File failedFile = new File(spoolFile.getPath() + FAILED_SUFFIX);
+            try {
+                saveRecipients(failedFile, recipients);
+                Files.move(spoolFile.toPath(), failedFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                //noinspection ResultOfMethodCallIgnored
+                recipientsFile(spoolFile).delete();
+            } catch (IOException e) {
+                // Left in the queue, delivered again after a restart
+            }
+            failed.incrementAndGet();
+            slots.release();
+        }
+
+        private void finish() {
+            //noinspection ResultOfMethodCallIgnored
+            recipientsFile(spoolFile).delete();
+            //noinspection ResultOfMethodCallIgnored
+            spoolFile.delete();
+            slots.release();
+        }
+    }
+
+    private static class Statistics implements DeliveryQueueMXBean {
+
+        @Override
+        public int getQueueDepth() {
+            return capacity - slots.availablePermits();
+        }
+
+        @Override
+        public int getCapacity() {
+            return capacity;
+        }
+
+        @Override
+        public long getEnqueuedCount() {
+            return enqueued.get();
+        }
+
+        @Override
+        public long getDeliveredCount() {
+            return delivered.get();
+        }
+
+        @Override
+        public long getRetryCount() {
+            return retries.get();
+        }
+
+        @Override
+        public long getRejectedCount() {
+            return rejected.get();
+        }
+
+        @Override
+        public long getFailedCount() {
+            return failed.get();
+        }
+
+        @Override
+        public double getAverageLatencyMillis() {
+            long count = delivered.get();
+            return count == 0 ? 0 : (double) totalLatency.get() / count;
+        }
+
+        @Override
+        public long getMaxLatencyMillis() {
+            return maxLatency.get();
+        }
+    }
+
+    /**
+     * Exception used when a message cannot be accepted because the delivery queue is full. The sender should try again
+     * later.
+     */
+    public static class QueueFullException extends IOException {
+    }
+}
@@ -0,0 +1,43 @@
+package mailbox;
+
+/**
+ * Management interface of the delivery queue, registered with the platform MBean server as
+ * <code>mailbox:type=DeliveryQueue</code>.
+ */
+public interface DeliveryQueueMXBean {
+
+    /**
+     * Returns the number of messages accepted but not yet delivered to all their recipients, including those waiting
+     * to be retried.
+     */
+    int getQueueDepth();
+
+    int getCapacity();
+
+    long getEnqueuedCount();
+
+    long getDeliveredCount();
+
+    /**
+     * Returns the number of delivery attempts that failed for at least one recipient and were scheduled again.
+     */
+    long getRetryCount();
+
+    /**
+     * Returns the number of messages that were refused because the queue was full.
+     */
+    long getRejectedCount();
+
+    /**
+     * Returns the number of messages that could not be delivered to all their recipients after the maximum number of
+     * attempts.
+     */
+    long getFailedCount();
+
+    /**
+     * Returns the average time between a message being queued and being delivered to all its recipients.
+     */
+    double getAverageLatencyMillis();
+
+    long getMaxLatencyMillis();
+}
@@ -0,0 +1,203 @@
+package mailbox;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Default storage format, with each message in its own file (<code>N.mail</code>) in the mailbox directory. The list of
+ * messages is taken from the shared MailboxIndexCache, so the mailbox directory is only scanned if it is not cached.
+ */
+class DirectoryStorage implements MailStorage {
+
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    private static final Map<String, AtomicLong> messageSequences = new ConcurrentHashMap<>();
+    private static volatile boolean linksSupported = true;
+
+    private final String user;
+    private final File mailDirectory;
+
+    DirectoryStorage(String user, File mailDirectory) {
+        this.user = user;
+        this.mailDirectory = mailDirectory;
+    }
+
+    /**
+     * Checks if a mailbox directory contains any message files.
+     */
+    static boolean hasMessages(File mailDirectory) {
+        String[] names = mailDirectory.list((dir, name) -> MailboxIndex.parseId(name) >= 0);
+        return names != null && names.length > 0;
+    }
+
+    @Override
+    public MessageList load() {
+        return MailboxIndexCache.get(user, mailDirectory);
+    }
+
+    /**
+     * Creates a new file to store a new incoming message, as well as a FileWriter associated to the file. The content
+     * is written to a temporary file, which only becomes a message in the mailbox once the writer is closed.
+     */
+    @Override
+    public FileWriter newMessageWriter() throws IOException {
+        File file = nextMessageFile();
+        File temp = new File(mailDirectory, file.getName() + TEMP_FILE_SUFFIX);
+        return new FileWriter(temp) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                if (publish(temp.toPath(), file.toPath())) {
+                    MailboxIndexCache.messageAdded(user, file);
+                    GroupCommit.await(GroupCommit.commit(List.of(file.toPath(), mailDirectory.toPath())));
+                }
+            }
+        };
+    }
+
+    /**
+     * Creates the message as a hard link to the content file whenever possible, so the content is not written again;
+     * otherwise (e.g., if the file is in a different file system), the content is copied to a temporary file which is
+     * then renamed. Other failures to link (e.g., too many links to the content file) only fall back to copying for
+     * this delivery. Either way, the message only becomes visible once its content is complete. The message is durable
+     * once both its file and the mailbox directory are forced.
+     */
+    @Override
+    public List<Path> deliver(Path content) throws IOException {
+        while (true) {
+            Path target = nextMessageFile().toPath();
+            if (linksSupported) {
+                try {
+                    Files.createLink(target, content);
+                    MailboxIndexCache.messageAdded(user, target.toFile());
+                    return List.of(target, mailDirectory.toPath());
+                } catch (FileAlreadyExistsException e) {
+                    // Created outside this server, try next index
+                    continue;
+                } catch (UnsupportedOperationException e) {
+                    // Links are not possible, copy the content instead
+                    linksSupported = false;
+                } catch (FileSystemException e) {
+                    // Copied instead; links are only given up for good if the spool is in another file system
+                    if (isCrossDevice(e))
+                        linksSupported = false;
+                }
+            }
+            Path temp = target.resolveSibling(target.getFileName() + TEMP_FILE_SUFFIX);
+            Files.copy(content, temp, StandardCopyOption.REPLACE_EXISTING);
+            if (publish(temp, target)) {
+                MailboxIndexCache.messageAdded(user, target.toFile());
+                return List.of(target, mailDirectory.toPath());
+            }
+        }
+    }
+
+    /**
+     * Checks if linking failed because the content file and the mailbox are in different file systems (EXDEV), which
+     * Java only reports through the system's error message.
+     */
+    private static boolean isCrossDevice(FileSystemException e) {
+        String reason = e.getReason();
+        return reason != null && reason.toLowerCase().contains("cross-device");
+    }
+
+    @Override
+    public List<Long> remove(MessageList messages, BitSet removed) {
+        List<Long> ids = new ArrayList<>(removed.cardinality());
+        for (int i = removed.nextSetBit(0); i >= 0; i = removed.nextSetBit(i + 1)) {
+            File file = messages.getFile(i);
+            if (file.delete()) {
+                MailboxIndexCache.messageRemoved(user, file);
+                ids.add(messages.getId(i));
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Renames a complete temporary file to its final message file name, unless a file with that name was created
+     * outside this server in the meantime.
+     *
+     * @return true if the message was published, or false if the name was taken and the temporary file was removed.
+     */
+    private static boolean publish(Path temp, Path target) throws IOException {
+        if (Files.exists(target)) {
+            Files.delete(temp);
+            return false;
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        return true;
+    }
+
+    /**
+     * Allocates the name of the next message file in constant time. The sequence of each mailbox is kept in memory for
+     * the lifetime of the server, and starts after the highest index found in the mailbox directory the first time a
+     * message is delivered to it.
+     */
+    private File nextMessageFile() {
+        AtomicLong sequence = messageSequences.computeIfAbsent(user, u -> new AtomicLong(findNextMessageIndex()));
+        return new File(mailDirectory, sequence.getAndIncrement() + Mailbox.MAIL_FILE_SUFFIX);
+    }
+
+    private long findNextMessageIndex() {
+        // Creates the directory if it doesn't exist
+        //noinspection ResultOfMethodCallIgnored
+        mailDirectory.mkdirs();
+        long next = 0;
+        String[] names = mailDirectory.list();
+        if (names == null)
+            return next;
+        for (String name : names)
+            next = Math.max(next, MailboxIndex.parseId(name) + 1);
+        return next;
+    }
+
+    /**
+     * Content of a message stored in its own file.
+     */
+    static class FileContent implements MessageContent {
+
+        private final FileChannel channel;
+        private final long size;
+
+        FileContent(File file) throws IOException {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            this.size = channel.size();
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return channel.read(dst, position);
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return channel.transferTo(position, count, target);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package mailbox;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Makes delivered messages durable with as few <code>FileChannel.force()</code> calls as possible. Each delivery
+ * requests the files it changed (e.g., the message file and its directory) to be forced, and a single background thread
+ * forces the files of all pending requests together, once per batch: a file changed by several deliveries in the same
+ * batch (such as a mailbox directory) is only forced once. A batch starts as soon as the previous one is complete, once
+ * the oldest request waited for the commit interval or the number of pending requests reaches the batch size,
+ * whichever comes first, so concurrent deliveries share the cost of the forces while a single delivery is not delayed
+ * by more than the interval.
+ */
+public class GroupCommit {
+
+    public static final long DEFAULT_INTERVAL = 2;
+    public static final int DEFAULT_BATCH_SIZE = 128;
+
+    private static volatile long interval = DEFAULT_INTERVAL;
+    private static volatile int batchSize = DEFAULT_BATCH_SIZE;
+    private static final List<Request> pending = new ArrayList<>();
+    private static long oldestRequest = 0;
+    private static Thread committer = null;
+
+    private GroupCommit() {
+    }
+
+    /**
+     * Sets when a batch of pending requests is committed.
+     *
+     * @param intervalMillis The maximum time, in milliseconds, that a request waits for other requests to join its
+     *                       batch.
+     * @param size           The number of pending requests that starts a batch immediately.
+     */
+    public static void configure(long intervalMillis, int size) {
+        interval = intervalMillis;
+        batchSize = Math.max(1, size);
+    }
+
+    /**
+     * Requests files to be forced to the storage device.
+     *
+     * @param files The files (or directories) changed by a delivery.
+     * @return A future completed once all the files are durable, or completed exceptionally with the IOException if
+     *         any of them could not be forced.
+     */
+    static CompletableFuture<Void> commit(Collection<Path> files) {
+        Request request = new Request(files);
+        synchronized (GroupCommit.class) {
+            if (committer == null) {
+                committer = new Thread(GroupCommit::processBatches, "group-commit");
+                committer.setDaemon(true);
+                committer.start();
+            }
+            if (pending.isEmpty())
+                oldestRequest = System.currentTimeMillis();
+            pending.add(request);
+            if (pending.size() == 1 || pending.size() >= batchSize)
+                GroupCommit.class.notifyAll();
+        }
+        return request.future;
+    }
+
+    /**
+     * Waits for a commit to complete.
+     *
+     * @param commit A future returned by <code>commit()</code> (or combining several of them).
+     * @throws IOException If the files could not be forced.
+     */
+    static void await(CompletableFuture<Void> commit) throws IOException {
+        try {
+            commit.join();
+        } catch (CompletionException | CancellationException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause() != null ? e.getCause() : e);
+        }
+    }
+
+    /**
+     * Commits batches of pending requests. Runs in a background thread for the lifetime of the server.
+     */
+    private static void processBatches() {
+        while (true) {
+            List<Request> batch;
+            try {
+                batch = nextBatch();
+            } catch (InterruptedException e) {
+                return;
+            }
+            Set<Path> files = new LinkedHashSet<>();
+            for (Request request : batch)
+                files.addAll(request.files);
+            Map<Path, IOException> failures = new HashMap<>();
+            for (Path file : files) {
+                try {
+                    force(file);
+                } catch (IOException e) {
+                    failures.put(file, e);
+                }
+            }
+            for (Request request : batch) {
+                IOException failure = null;
+                for (Path file : request.files) {
+                    if (failure == null)
+                        failure = failures.get(file);
+                }
+                if (failure == null)
+                    request.future.complete(null);
+                else
+                    request.future.completeExceptionally(failure);
+            }
+        }
+    }
+
+    /**
+     * Waits until a batch is due, and takes all pending requests.
+     */
+    private static synchronized List<Request> nextBatch() throws InterruptedException {
+        while (true) {
+            if (pending.isEmpty()) {
+                GroupCommit.class.wait();
+                continue;
+            }
+            long remaining = oldestRequest + interval - System.currentTimeMillis();
+            if (pending.size() < batchSize && remaining > 0) {
+                GroupCommit.class.wait(remaining);
+                continue;
+            }
+            List<Request> batch = new ArrayList<>(pending);
+            pending.clear();
+            return batch;
+        }
+    }
+
+    private static void force(Path file) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+        } catch (IOException e) {
+            // Directories cannot be opened on some platforms, where their entries are durable anyway
+            if (Files.isDirectory(file))
+                return;
+            throw e;
+        }
+        // A failure to force the changes, even those of a directory, fails the batch
+        try (channel) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * The files changed by a delivery, and the future completed once they are durable.
+     */
+    private static class Request {
+
+        private final Collection<Path> files;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Request(Collection<Path> files) {
+            this.files = files;
+        }
+    }
+}
@@ -1,67 +1,69 @@
-package mailbox;
-import java.io.File;
-
-/**
- * An individual mail message.
- */
-public class MailMessage {
-
-    private final File file;
-    private final long fileSize;
-    private boolean deleted;
-
-    /**
-     * Creates a new mail message object whose content can be retrieved from a specified file.
-     *
-     * @param file The file object where the file content is found.
-     */
-    public MailMessage(File file) {
-        this.file = file;
-        this.fileSize = file.length();
-        this.deleted = false;
-    }
-
-    /**
-     * Returns the file object associated to the mail message.
-     *
-     * @return A File object containing the content of the mail message.
-     */
-    public File getFile() {
-        return file;
-    }
-
-    /**
-     * Returns the number of bytes in the mail message, including headers.
-     *
-     * @return The size of the mail message, in bytes.
-     */
-    public long getFileSize() {
-        return fileSize;
-    }
-
-    /**
-     * Returns true if the message is tagged to be deleted.
-     *
-     * @return true if the message is tagged to be deleted, and false otherwise.
-     */
-    public boolean isDeleted() {
-        return deleted;
-    }
-
-    /**
-     * Tags the message to be deleted. The file itself is not deleted yet, only marked for deletion. Marking the item
-     * for deletion does not remove it from the corresponding mailbox or delete the corresponding file, as the message
-     * may be undeleted with the <code>undelete()</code> method. To actually delete the file, use the
-     * <code>deleteItemsTaggedForDeletion()</code> method in Mailbox.
-     */
-    public void tagForDeletion() {
-        this.deleted = true;
-    }
-
-    /**
-     * Resets the deletion tag so the message is no longer marked to be deleted.
-     */
-    public void undelete() {
-        this.deleted = false;
-    }
-}
+package mailbox;
+import java.io.File;
+
+/**
+ * An individual mail message. The message's information is kept by the mailbox it belongs to, so this object is only
+ * a lightweight view of a particular message in that mailbox, and changes made through it (e.g., tagging it for
+ * deletion) are reflected in the mailbox's totals.
+ */
+public class MailMessage {
+
+    private final Mailbox mailbox;
+    private final int index;
+
+    /**
+     * Creates a view of the mail message at a particular index of a mailbox.
+     *
+     * @param mailbox The mailbox containing the message.
+     * @param index   The 1-based index of the message in the mailbox.
+     */
+    MailMessage(Mailbox mailbox, int index) {
+        this.mailbox = mailbox;
+        this.index = index;
+    }
+
+    /**
+     * Returns the file object associated to the mail message, if the mailbox stores each message in its own file.
+     *
+     * @return A File object containing the content of the mail message, or null if the message is not stored in its
+     *         own file.
+     */
+    public File getFile() {
+        return mailbox.getFile(index);
+    }
+
+    /**
+     * Returns the number of bytes in the mail message, including headers.
+     *
+     * @return The size of the mail message, in bytes.
+     */
+    public long getFileSize() {
+        return mailbox.getFileSize(index);
+    }
+
+    /**
+     * Returns true if the message is tagged to be deleted.
+     *
+     * @return true if the message is tagged to be deleted, and false otherwise.
+     */
+    public boolean isDeleted() {
+        return mailbox.isDeleted(index);
+    }
+
+    /**
+     * Tags the message to be deleted. The file itself is not deleted yet, only marked for deletion. Marking the item
+     * for deletion does not remove it from the corresponding mailbox or delete the corresponding file, as the message
+     * may be undeleted with the <code>undelete()</code> method. To actually delete the file, use the
+     * <code>deleteItemsTaggedForDeletion()</code> method in Mailbox.
+     */
+    public void tagForDeletion() {
+        mailbox.tagForDeletion(index);
+    }
+
+    /**
+     * Resets the deletion tag so the message is no longer marked to be deleted.
+     */
+    public void undelete() {
+        mailbox.undelete(index);
+    }
+}
@@ -0,0 +1,72 @@
+package mailbox;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Format in which the messages of a mailbox are stored. Two formats are available: one file per message in the
+ * mailbox directory (<code>DirectoryStorage</code>, the default), and a single append-only segment file with an offset
+ * index (<code>SegmentStorage</code>), which avoids large directories for mailboxes with many messages.
+ */
+interface MailStorage {
+
+    /**
+     * Returns the messages currently in the mailbox. The list does not change after it is returned, even if messages
+     * are delivered or removed later.
+     */
+    MessageList load();
+
+    /**
+     * Creates a writer for a new message, which only becomes visible in the mailbox once the writer is closed. Closing
+     * the writer waits until the message is durable.
+     */
+    FileWriter newMessageWriter() throws IOException;
+
+    /**
+     * Adds a new message to the mailbox with the content of an existing file, which is not modified. The message is
+     * not necessarily durable yet.
+     *
+     * @return The files that must be forced to the storage device for the message to be durable.
+     */
+    List<Path> deliver(Path content) throws IOException;
+
+    /**
+     * Removes messages from the mailbox.
+     *
+     * @param messages The list of messages the indexes refer to.
+     * @param removed  The (0-based) indexes of the messages to remove.
+     * @return The identifiers of the messages that were removed.
+     */
+    List<Long> remove(MessageList messages, BitSet removed);
+
+    /**
+     * Immutable list of the messages in a mailbox at a particular point in time, in ascending order of identifier.
+     * Indexes are 0-based.
+     */
+    interface MessageList {
+
+        int size();
+
+        /**
+         * Returns the identifier of a message, which is unique within the mailbox.
+         */
+        long getId(int i);
+
+        long getFileSize(int i);
+
+        /**
+         * Returns the time the message was last modified (or added), in milliseconds since the epoch.
+         */
+        long getLastModified(int i);
+
+        /**
+         * Returns the file containing a message, or null if messages are not stored in individual files.
+         */
+        File getFile(int i);
+
+        MessageContent open(int i) throws IOException;
+    }
+}
@@ -1,72 +1,170 @@
-package mailbox;
-import java.io.IOException;
-import java.io.Writer;
-import java.util.Collection;
-import java.util.stream.Collectors;
-
-/**
- * Writer interface that saves the content into a set of user mailboxes. Can be used in the same way as any other
- * regular Writer (e.g., FileWriter), as well as in combination with a BufferedWriter or PrintWriter.
- */
-public class MailWriter extends Writer {
-
-    public static final int BUFFER_SIZE = 4096;
-    private final Collection<Writer> writers;
-    private final StringBuffer buffer;
-
-    /**
-     * Creates a new MailWriter for a collection of mailbox recipients. Any content written to this MailWriter will be
-     * copied to a new mail message in each of the mailboxes with exactly the same content.
-     *
-     * @param recipients Collection (list or set) of mailboxes where the content will be saved.
-     */
-    public MailWriter(Collection<Mailbox> recipients) {
-        writers = recipients.stream().map(Mailbox::getNewMessageWriter).collect(Collectors.toList());
-        buffer = new StringBuffer(BUFFER_SIZE);
-    }
-
-    /**
-     * Writes the content to an internal buffer that will eventually be written to messages in all mailboxes. This is
-     * the basis for all other <code>write()</code> methods, as they internally call this method with appropriate
-     * values.
-     *
-     * @param cbuf Array of characters to be written
-     * @param off  Offset from which to start writing characters
-     * @param len  Number of characters to write
-     */
-    @Override
-    public synchronized void write(char[] cbuf, int off, int len) throws IOException {
-        if (buffer.length() + len > buffer.capacity())
-            flush();
-        buffer.append(cbuf, off, len);
-    }
-
-    /**
-     * Flushes the content into the individual mailboxes.
-     *
-     * @throws IOException If there is an exception while saving content into any of the mailbox files.
-     */
-    @Override
-    public synchronized void flush() throws IOException {
-        if (buffer.length() == 0)
-            return;
-        for (Writer w : writers) {
-            w.write(buffer.toString());
-            w.flush();
-        }
-        buffer.setLength(0);
-    }
-
-    /**
-     * Closes the MailWriter and corresponding mailbox item writers.
-     *
-     * @throws IOException If there is an exception while saving or closing any of the mailbox files.
-     */
-    @Override
-    public void close() throws IOException {
-        flush();
-        for (Writer w : writers) {
-            w.close();
-        }
-    }
-}
+package mailbox;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Writer interface that saves the content into a set of user mailboxes. Can be used in the same way as any other
+ * regular Writer (e.g., FileWriter), as well as in combination with a BufferedWriter or PrintWriter. Content that is
+ * already encoded, such as mail content received from the network, can be saved as is with
+ * <code>write(ByteBuffer)</code>.
+ * <p>
+ * The content is written only once, to a spool file. When the writer is closed, the spool file is made durable and
+ * queued in the <code>DeliveryQueue</code>, whose workers deliver it to every mailbox (as a hard link whenever
+ * possible), so the disk I/O does not depend on the number of recipients, and the message only becomes visible in the
+ * mailboxes once it is complete. Files are made durable by <code>GroupCommit</code>, which forces the changes of
+ * concurrent messages together.
+ */
+public class MailWriter extends Writer {
+
+    public static final int BUFFER_SIZE = 4096;
+    private final Collection<Mailbox> recipients;
+    private final File spoolFile;
+    private final FileOutputStream spool;
+    private final ByteBuffer buffer;
+
+    /**
+     * Creates a new MailWriter for a collection of mailbox recipients. Any content written to this MailWriter will be
+     * copied to a new mail message in each of the mailboxes with exactly the same content.
+     *
+     * @param recipients Collection (list or set) of mailboxes where the content will be saved.
+     * @throws IOException If the spool file cannot be created.
+     */
+    public MailWriter(Collection<Mailbox> recipients) throws IOException {
+        this.recipients = new ArrayList<>(recipients);
+        //noinspection ResultOfMethodCallIgnored
+        Mailbox.SPOOL_DIRECTORY.mkdirs();
+        spoolFile = File.createTempFile("msg", ".spool", Mailbox.SPOOL_DIRECTORY);
+        spool = new FileOutputStream(spoolFile);
+        buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    /**
+     * Encodes the content with the platform's default charset and writes it to an internal buffer that will eventually
+     * be written to messages in all mailboxes. This is the basis for all other character-based <code>write()</code>
+     * methods, as they internally call this method with appropriate values.
+     *
+     * @param cbuf Array of characters to be written
+     * @param off  Offset from which to start writing characters
+     * @param len  Number of characters to write
+     */
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        write(ByteBuffer.wrap(new String(cbuf, off, len).getBytes()));
+    }
+
+    /**
+     * Writes already encoded content to an internal buffer that will eventually be written to messages in all
+     * mailboxes. All remaining bytes in the source buffer are consumed. Content at least as large as the internal
+     * buffer is written directly to the spool file, without being copied into the buffer.
+     *
+     * @param src Buffer containing the bytes to be written
+     * @throws IOException If there is an exception while saving content into the spool file.
+     */
+    public synchronized void write(ByteBuffer src) throws IOException {
+        if (src.remaining() >= buffer.capacity()) {
+            flush();
+            while (src.hasRemaining())
+                spool.getChannel().write(src);
+            return;
+        }
+        while (src.hasRemaining()) {
+            if (!buffer.hasRemaining())
+                flush();
+            int length = Math.min(src.remaining(), buffer.remaining());
+            buffer.put(buffer.position(), src, src.position(), length);
+            buffer.position(buffer.position() + length);
+            src.position(src.position() + length);
+        }
+    }
+
+    /**
+     * Flushes the content into the spool file. The content only reaches the mailboxes when the writer is closed.
+     *
+     * @throws IOException If there is an exception while saving content into the spool file.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        if (buffer.position() == 0)
+            return;
+        spool.write(buffer.array(), 0, buffer.position());
+        buffer.clear();
+    }
+
+    /**
+     * Closes the MailWriter and queues the message for delivery to every mailbox, waiting until it is durable in the
+     * spool directory.
+     *
+     * @throws IOException If there is an exception while saving the content or making it durable, in which case the
+     *                     message is discarded, or <code>DeliveryQueue.QueueFullException</code> if the delivery queue
+     *                     is full.
+     */
+    @Override
+    public void close() throws IOException {
+        GroupCommit.await(closeAsync());
+    }
+
+    /**
+     * Closes the MailWriter and queues the message for delivery to every mailbox, without waiting until it is durable
+     * in the spool directory. Should be used by callers that cannot block, such as an event loop, to acknowledge the
+     * message only once the returned future is complete.
+     *
+     * @return A future completed once the message is durable and queued, or completed exceptionally with
+     *         <code>DeliveryQueue.QueueFullException</code> if the delivery queue is full, or with the IOException if
+     *         the content could not be saved or made durable.
+     */
+    public CompletableFuture<Void> closeAsync() {
+        List<String> users = new ArrayList<>(recipients.size());
+        for (Mailbox mailbox : recipients)
+            users.add(mailbox.getUsername());
+        File recipientsFile;
+        try {
+            DeliveryQueue.reserve();
+        } catch (DeliveryQueue.QueueFullException e) {
+            abort();
+            return CompletableFuture.failedFuture(e);
+        }
+        try {
+            flush();
+            spool.close();
+            recipientsFile = DeliveryQueue.saveRecipients(spoolFile, users);
+        } catch (IOException e) {
+            abort();
+            DeliveryQueue.release();
+            return CompletableFuture.failedFuture(e);
+        }
+        List<Path> files = List.of(spoolFile.toPath(), recipientsFile.toPath(), Mailbox.SPOOL_DIRECTORY.toPath());
+        return GroupCommit.commit(files)
+                .whenComplete((result, e) -> {
+                    if (e == null) {
+                        DeliveryQueue.submit(spoolFile, users);
+                    } else {
+                        //noinspection ResultOfMethodCallIgnored
+                        recipientsFile.delete();
+                        abort();
+                        DeliveryQueue.release();
+                    }
+                });
+    }
+
+    /**
+     * Closes the MailWriter and discards the content, without delivering it to any mailbox. Used when a message could
+     * not be received completely.
+     */
+    public void abort() {
+        try {
+            spool.close();
+        } catch (IOException e) {
+            // The spool file is deleted anyway
+        }
+        //noinspection ResultOfMethodCallIgnored
+        spoolFile.delete();
+    }
+}
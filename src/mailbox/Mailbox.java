@@ -1,198 +1,433 @@
-package mailbox;
-import java.io.*;
-import java.util.*;
-import java.util.stream.Collectors;
-
-public class Mailbox implements Iterable<MailMessage> {
-
-    public static final String USER_FILE_NAME = "users.txt";
-    public static final File USER_MAIL_BASE_DIRECTORY = new File("mail.store");
-    public static final String MAIL_FILE_SUFFIX = ".mail";
-
-    private static HashMap<String, String> userMap = null;
-
-    private final String user;
-    private final File mailDirectory;
-    private List<MailMessage> messageList = null;
-
-    /**
-     * Initialized the mailbox for a specified user.
-     *
-     * @param user The user's address, including domain name.
-     * @throws InvalidUserException If the user's address is not a valid address according to the list of accepted
-     *                              addresses.
-     */
-    public Mailbox(String user) throws InvalidUserException {
-        if (!isValidUser(user))
-            throw new InvalidUserException();
-        this.user = user;
-        this.mailDirectory = new File(USER_MAIL_BASE_DIRECTORY, user);
-    }
-
-    /**
-     * Initializes the map of user addresses and passwords from the users database. Only retrieves the data once, so
-     * changes in the database require the server to be restarted.
-     *
-     * @return A map from a user's address to the user's password.
-     */
-    private static synchronized Map<String, String> getUserMap() {
-        if (userMap != null)
-            return userMap;
-        userMap = new HashMap<>();
-        try (BufferedReader reader = new BufferedReader(new FileReader(USER_FILE_NAME))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] split = line.split(" ", 2);
-                userMap.put(split[0], split[1]);
-            }
-        } catch (FileNotFoundException e) {
-            // Do nothing, there are no users
-        } catch (IOException e) {
-            // Do nothing, accept no users
-        }
-        return userMap;
-    }
-
-    /**
-     * Checks if a specified user address is a valid user, according to the user database.
-     *
-     * @param user The user's address, including domain name.
-     * @return true if the user is in the database, and false otherwise.
-     */
-    public static boolean isValidUser(String user) {
-        return getUserMap().containsKey(user);
-    }
-
-    public String getUsername() {
-        return this.user;
-    }
-
-    /**
-     * Checks the user's password and, if valid, loads the user's mailbox messages from the mail storage.
-     *
-     * @param password The user's password, unencrypted.
-     * @throws MailboxNotAuthenticatedException If the password was not provided or is incorrect.
-     */
-    public void loadMessages(String password) throws MailboxNotAuthenticatedException {
-        if (password == null || !password.equals(getUserMap().get(user)))
-            throw new MailboxNotAuthenticatedException();
-        this.messageList = Collections.emptyList();
-        if (mailDirectory.exists() && mailDirectory.isDirectory()) {
-            File[] files = mailDirectory.listFiles(f -> f.isFile() && f.getName().endsWith(MAIL_FILE_SUFFIX));
-            if (files != null)
-                this.messageList = Arrays.stream(files).sorted().map(MailMessage::new).collect(Collectors.toList());
-        }
-    }
-
-    /**
-     * Creates a new file to store a new incoming message, as well as a FileWriter associated to the file. Used by the
-     * MailWriter class.
-     *
-     * @return A FileWriter object associated to the new file.
-     */
-    public FileWriter getNewMessageWriter() {
-        // Creates the directory if it doesn't exist
-        //noinspection ResultOfMethodCallIgnored
-        mailDirectory.mkdirs();
-        for (int i = 0; ; i++) {
-            try {
-                File file = new File(mailDirectory, i + MAIL_FILE_SUFFIX);
-                if (!file.createNewFile())
-                    continue;
-                return new FileWriter(file);
-            } catch (IOException e) {
-                // continue, try next index
-            }
-        }
-    }
-
-    /**
-     * Iterates over the mail messages load from the mailbox. May be used to create a for-each loop like:
-     * <pre>
-     *     for (MailMessage message : mailbox) { ... }
-     * </pre>
-     *
-     * @return An Iterator object over the mail messages in the mailbox.
-     * @throws MailboxNotAuthenticatedException If this operation is attempted before loading the list of messages.
-     */
-    @Override
-    public Iterator<MailMessage> iterator() throws MailboxNotAuthenticatedException {
-        if (messageList == null)
-            throw new MailboxNotAuthenticatedException();
-        return messageList.iterator();
-    }
-
-    /**
-     * Returns the mail message at a particular index. The index is 1-based (i.e., the first message has the index 1
-     * instead of 0), as per POP3 conventions. Note that this message may have been tagged for deletion, so it is
-     * usually advisable to check isDeleted() before using the value of this entry.
-     *
-     * @param index The index of the message to be retrieved.
-     * @return A MailMessage object corresponding to the mail message.
-     * @throws MailboxNotAuthenticatedException If this operation is attempted before loading the list of messages.
-     * @throws IndexOutOfBoundsException        If the index is less than 1 or larger than the number of messages.
-     */
-    public MailMessage getMailMessage(int index) throws MailboxNotAuthenticatedException, IndexOutOfBoundsException {
-        if (messageList == null)
-            throw new MailboxNotAuthenticatedException();
-        return messageList.get(index - 1);
-    }
-
-    /**
-     * Returns the number of mail messages in the mailbox.
-     *
-     * @param includeDeleted Should be set to true if deleted messages should be included, or false if they should be
-     *                       ignored.
-     * @return The number of mail messages in the mailbox.
-     * @throws MailboxNotAuthenticatedException If this operation is attempted before loading the list of messages.
-     */
-    public int size(boolean includeDeleted) throws MailboxNotAuthenticatedException {
-        if (messageList == null)
-            throw new MailboxNotAuthenticatedException();
-        if (includeDeleted)
-            return messageList.size();
-        return (int) messageList.stream().filter(item -> !item.isDeleted()).count();
-    }
-
-    /**
-     * Returns the total size across all mail messages in the mailbox.
-     *
-     * @param includeDeleted Should be set to true if deleted messages should be included, or false if they should be
-     *                       ignored.
-     * @return The total size, in bytes, of all mail messages in the mailbox.
-     * @throws MailboxNotAuthenticatedException If this operation is attempted before loading the list of messages.
-     */
-    public long getTotalUndeletedFileSize(boolean includeDeleted) throws MailboxNotAuthenticatedException {
-        if (messageList == null)
-            throw new MailboxNotAuthenticatedException();
-        return messageList.stream().filter(item -> (includeDeleted || !item.isDeleted())).mapToLong(MailMessage::getFileSize).sum();
-    }
-
-    /**
-     * Deletes the files for each message currently tagged for deletion. This operation cannot be undone, and for POP3
-     * should only be performed when the corresponding session is complete. If the corresponding messages have not been
-     * loaded, this method performs no operation.
-     */
-    public void deleteMessagesTaggedForDeletion() {
-        if (messageList == null)
-            return;
-        for (MailMessage item : messageList) {
-            if (item.isDeleted())
-                //noinspection ResultOfMethodCallIgnored
-                item.getFile().delete();
-        }
-    }
-
-    /**
-     * Exception used when attempting to obtain a mailbox for a user that is not in the database.
-     */
-    public static class InvalidUserException extends RuntimeException {
-    }
-
-    /**
-     * Exception used when attempting to perform operations that require authentication, but the authentication was not
-     * performed or was unsuccessful.
-     */
-    public static class MailboxNotAuthenticatedException extends RuntimeException {
-    }
-}
+package mailbox;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class Mailbox implements Iterable<MailMessage> {
+
+    public static final String USER_FILE_NAME = "users.txt";
+    public static final File USER_MAIL_BASE_DIRECTORY = new File("mail.store");
+    public static final String MAIL_FILE_SUFFIX = ".mail";
+    public static final File SPOOL_DIRECTORY = new File(USER_MAIL_BASE_DIRECTORY, ".spool");
+    public static final String DIRECTORY_STORAGE = "directory";
+    public static final String SEGMENT_STORAGE = "segment";
+
+    private static volatile String defaultStorage = DIRECTORY_STORAGE;
+    /**
+     * Whether the mailboxes opened so far use the segment storage. The format of a mailbox never changes once it holds
+     * messages, so the directory is only listed until then.
+     */
+    private static final Map<String, Boolean> segmentStorage = new ConcurrentHashMap<>();
+
+    private final String user;
+    private final File mailDirectory;
+    private final MailStorage storage;
+    private MailStorage.MessageList messages = null;
+    private BitSet deleted = null;
+    private int deletedCount = 0;
+    private long totalFileSize = 0;
+    private long deletedFileSize = 0;
+    private MailboxMetadata metadata = null;
+
+    /**
+     * Initialized the mailbox for a specified user. Mailboxes already stored as a segment file keep that format;
+     * otherwise, mailboxes without messages use the default storage format, and all others keep one file per message.
+     *
+     * @param user The user's address, including domain name.
+     * @throws InvalidUserException If the user's address is not a valid address according to the list of accepted
+     *                              addresses.
+     */
+    public Mailbox(String user) throws InvalidUserException {
+        if (!isValidUser(user))
+            throw new InvalidUserException();
+        this.user = user;
+        this.mailDirectory = new File(USER_MAIL_BASE_DIRECTORY, user);
+        Boolean segment = segmentStorage.get(user);
+        if (segment != null ? segment : usesSegmentStorage(user, mailDirectory))
+            this.storage = new SegmentStorage(user, mailDirectory);
+        else
+            this.storage = new DirectoryStorage(user, mailDirectory);
+    }
+
+    /**
+     * Sets the storage format used for new mailboxes: <code>directory</code> (the default) stores each message in its
+     * own file, and <code>segment</code> appends all messages to a single memory-mapped segment file, which is better
+     * suited to mailboxes with many messages. Existing mailboxes are not converted.
+     *
+     * @param format The name of the storage format.
+     * @throws IllegalArgumentException If the format is not recognized.
+     */
+    public static void setDefaultStorage(String format) {
+        if (!format.equals(DIRECTORY_STORAGE) && !format.equals(SEGMENT_STORAGE))
+            throw new IllegalArgumentException("Unknown storage format: " + format);
+        defaultStorage = format;
+        segmentStorage.clear();
+    }
+
+    private static boolean usesSegmentStorage(String user, File mailDirectory) {
+        if (SegmentStorage.isUsedBy(mailDirectory)) {
+            segmentStorage.put(user, true);
+            return true;
+        }
+        if (!defaultStorage.equals(SEGMENT_STORAGE))
+            return false;
+        if (DirectoryStorage.hasMessages(mailDirectory)) {
+            segmentStorage.put(user, false);
+            return false;
+        }
+        // Not remembered, the format of an empty mailbox is only settled by its first delivery
+        return true;
+    }
+
+    /**
+     * Checks if a specified user address is a valid user, according to the user database.
+     *
+     * @param user The user's address, including domain name.
+     * @return true if the user is in the database, and false otherwise.
+     */
+    public static boolean isValidUser(String user) {
+        return UserDirectory.isValidUser(user);
+    }
+
+    public String getUsername() {
+        return this.user;
+    }
+
+    /**
+     * Checks the user's password and, if valid, acquires exclusive access to the user's maildrop and loads the user's
+     * mailbox messages from the mail storage. Only one Mailbox object at a time may have loaded the messages of a user,
+     * until it calls <code>unlock()</code>. Messages delivered after this method returns are not included.
+     *
+     * @param password The user's password, unencrypted.
+     * @throws MailboxNotAuthenticatedException If the password was not provided or is incorrect.
+     * @throws MaildropLockedException          If the messages of the user are loaded by another Mailbox object.
+     */
+    public void loadMessages(String password) throws MailboxNotAuthenticatedException, MaildropLockedException {
+        if (!UserDirectory.authenticate(user, password))
+            throw new MailboxNotAuthenticatedException();
+        if (!MaildropLocks.tryLock(user, this))
+            throw new MaildropLockedException();
+        MailStorage.MessageList index;
+        try {
+            index = storage.load();
+        } catch (RuntimeException e) {
+            MaildropLocks.unlock(user, this);
+            throw e;
+        }
+        long total = 0;
+        for (int i = 0; i < index.size(); i++)
+            total += index.getFileSize(i);
+        this.deleted = new BitSet(index.size());
+        this.deletedCount = 0;
+        this.totalFileSize = total;
+        this.deletedFileSize = 0;
+        this.messages = index;
+    }
+
+    /**
+     * Creates a new file to store a new incoming message, as well as a FileWriter associated to the file. The content
+     * is written to a temporary file, which only becomes a message in the mailbox once the writer is closed. Closing
+     * the writer waits until the message is durable.
+     *
+     * @return A FileWriter object associated to the new file.
+     * @throws IOException If the file cannot be created.
+     */
+    public FileWriter getNewMessageWriter() throws IOException {
+        return storage.newMessageWriter();
+    }
+
+    /**
+     * Adds a new message to the mailbox with the content of an existing file. The message only becomes visible once
+     * its content is complete. The changes are forced to the storage device by <code>GroupCommit</code>, together with
+     * those of other deliveries, so the message may not be durable yet when this method returns. Used by the
+     * MailWriter class. The size of the message is added to the storage used by the mailbox (see <code>Quotas</code>).
+     *
+     * @param content The file containing the complete message. It must not be modified after delivery.
+     * @return A future completed once the message is durable, or completed exceptionally if it could not be made
+     *         durable.
+     * @throws IOException If the message cannot be created.
+     */
+    public CompletableFuture<Void> deliver(Path content) throws IOException {
+        long size = Files.size(content);
+        CompletableFuture<Void> durable = GroupCommit.commit(storage.deliver(content));
+        Quotas.getUsageOf(user).add(size);
+        return durable;
+    }
+
+    /**
+     * Computes the total size of the messages currently stored in the mailbox, without loading them for a session. Only
+     * used by <code>Quotas</code>, in the background, when the storage used by the mailbox was never saved.
+     */
+    long computeUsage() {
+        MailStorage.MessageList index = storage.load();
+        long total = 0;
+        for (int i = 0; i < index.size(); i++)
+            total += index.getFileSize(i);
+        return total;
+    }
+
+    /**
+     * Iterates over the mail messages load from the mailbox. May be used to create a for-each loop like:
+     * <pre>
+     *     for (MailMessage message : mailbox) { ... }
+     * </pre>
+     *
+     * @return An Iterator object over the mail messages in the mailbox.
+     * @throws MailboxNotAuthenticatedException If this operation is attempted before loading the list of messages.
+     */
+    @Override
+    public Iterator<MailMessage> iterator() throws MailboxNotAuthenticatedException {
+        checkLoaded();
+        return new Iterator<MailMessage>() {
+            private int next = 1;
+
+            @Override
+            public boolean hasNext() {
+                return next <= messages.size();
+            }
+
+            @Override
+            public MailMessage next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return new MailMessage(Mailbox.this, next++);
+            }
+        };
+    }
+
+    /**
+     * Returns the mail message at a particular index. The index is 1-based (i.e., the first message has the index 1
+     * instead of 0), as per POP3 conventions. Note that this message may have been tagged for deletion, so it is
+     * usually advisable to check isDeleted() before using the value of this entry.
+     *
+     * @param index The index of the message to be retrieved.
+     * @return A MailMessage object corresponding to the mail message.
+     * @throws MailboxNotAuthenticatedException If this operation is attempted before loading the list of messages.
+     * @throws IndexOutOfBoundsException        If the index is less than 1 or larger than the number of messages.
+     */
+    public MailMessage getMailMessage(int index) throws MailboxNotAuthenticatedException, IndexOutOfBoundsException {
+        checkIndex(index);
+        return new MailMessage(this, index);
+    }
+
+    /**
+     * Returns the file containing the mail message at a particular (1-based) index. Only available if the mailbox
+     * stores each message in its own file; <code>openMessage()</code> can be used for any storage format.
+     *
+     * @param index The index of the message.
+     * @return A File object containing the content of the mail message, or null if the message is not stored in its
+     *         own file.
+     * @throws MailboxNotAuthenticatedException If this operation is attempted before loading the list of messages.
+     * @throws IndexOutOfBoundsException        If the index is less than 1 or larger than the number of messages.
+     */
+    public File getFile(int index) throws MailboxNotAuthenticatedException, IndexOutOfBoundsException {
+        checkIndex(index);
+        return messages.getFile(index - 1);
+    }
+
+    /**
+     * Opens the content of the mail message at a particular (1-based) index for reading.
+     *
+     * @param index The index of the message.
+     * @return A MessageContent object with the content of the mail message, which must be closed after use.
+     * @throws IOException                      If the content cannot be opened.
+     * @throws MailboxNotAuthenticatedException If this operation is attempted before loading the list of messages.
+     * @throws IndexOutOfBoundsException        If the index is less than 1 or larger than the number of messages.
+     */
+    public MessageContent openMessage(int index) throws IOException, MailboxNotAuthenticatedException,
+            IndexOutOfBoundsException {
+        checkIndex(index);
+        return messages.open(index - 1);
+    }
+
+    /**
+     * Returns the size of the mail message at a particular (1-based) index, including headers.
+     *
+     * @param index The index of the message.
+     * @return The size of the mail message, in bytes.
+     * @throws MailboxNotAuthenticatedException If this operation is attempted before loading the list of messages.
+     * @throws IndexOutOfBoundsException        If the index is less than 1 or larger than the number of messages.
+     */
+    public long getFileSize(int index) throws MailboxNotAuthenticatedException, IndexOutOfBoundsException {
+        checkIndex(index);
+        return messages.getFileSize(index - 1);
+    }
+
+    /**
+     * Returns the metadata of the mail message at a particular (1-based) index: its unique identifier, where its
+     * headers end, and whether it must be dot-stuffed before being sent. The metadata is kept in a file in the mailbox
+     * directory, so the message is only read the first time its metadata is needed.
+     *
+     * @param index The index of the message.
+     * @return A MessageMetadata object with the metadata of the message.
+     * @throws IOException                      If the message file cannot be read.
+     * @throws MailboxNotAuthenticatedException If this operation is attempted before loading the list of messages.
+     * @throws IndexOutOfBoundsException        If the index is less than 1 or larger than the number of messages.
+     */
+    public MessageMetadata getMetadata(int index) throws IOException, MailboxNotAuthenticatedException,
+            IndexOutOfBoundsException {
+        checkIndex(index);
+        if (metadata == null)
+            metadata = new MailboxMetadata(mailDirectory);
+        return metadata.get(messages, index - 1);
+    }
+
+    /**
+     * Returns true if the mail message at a particular (1-based) index is tagged to be deleted.
+     *
+     * @param index The index of the message.
+     * @return true if the message is tagged to be deleted, and false otherwise.
+     * @throws MailboxNotAuthenticatedException If this operation is attempted before loading the list of messages.
+     * @throws IndexOutOfBoundsException        If the index is less than 1 or larger than the number of messages.
+     */
+    public boolean isDeleted(int index) throws MailboxNotAuthenticatedException, IndexOutOfBoundsException {
+        checkIndex(index);
+        return deleted.get(index - 1);
+    }
+
+    /**
+     * Tags the mail message at a particular (1-based) index to be deleted. The file itself is only deleted by
+     * <code>deleteMessagesTaggedForDeletion()</code>.
+     *
+     * @param index The index of the message.
+     * @throws MailboxNotAuthenticatedException If this operation is attempted before loading the list of messages.
+     * @throws IndexOutOfBoundsException        If the index is less than 1 or larger than the number of messages.
+     */
+    public void tagForDeletion(int index) throws MailboxNotAuthenticatedException, IndexOutOfBoundsException {
+        checkIndex(index);
+        if (deleted.get(index - 1))
+            return;
+        deleted.set(index - 1);
+        deletedCount++;
+        deletedFileSize += messages.getFileSize(index - 1);
+    }
+
+    /**
+     * Resets the deletion tag of the mail message at a particular (1-based) index.
+     *
+     * @param index The index of the message.
+     * @throws MailboxNotAuthenticatedException If this operation is attempted before loading the list of messages.
+     * @throws IndexOutOfBoundsException        If the index is less than 1 or larger than the number of messages.
+     */
+    public void undelete(int index) throws MailboxNotAuthenticatedException, IndexOutOfBoundsException {
+        checkIndex(index);
+        if (!deleted.get(index - 1))
+            return;
+        deleted.clear(index - 1);
+        deletedCount--;
+        deletedFileSize -= messages.getFileSize(index - 1);
+    }
+
+    /**
+     * Resets the deletion tag of all mail messages in the mailbox.
+     *
+     * @throws MailboxNotAuthenticatedException If this operation is attempted before loading the list of messages.
+     */
+    public void undeleteAll() throws MailboxNotAuthenticatedException {
+        checkLoaded();
+        deleted.clear();
+        deletedCount = 0;
+        deletedFileSize = 0;
+    }
+
+    /**
+     * Returns the number of mail messages in the mailbox.
+     *
+     * @param includeDeleted Should be set to true if deleted messages should be included, or false if they should be
+     *                       ignored.
+     * @return The number of mail messages in the mailbox.
+     * @throws MailboxNotAuthenticatedException If this operation is attempted before loading the list of messages.
+     */
+    public int size(boolean includeDeleted) throws MailboxNotAuthenticatedException {
+        checkLoaded();
+        return includeDeleted ? messages.size() : messages.size() - deletedCount;
+    }
+
+    /**
+     * Returns the total size across all mail messages in the mailbox.
+     *
+     * @param includeDeleted Should be set to true if deleted messages should be included, or false if they should be
+     *                       ignored.
+     * @return The total size, in bytes, of all mail messages in the mailbox.
+     * @throws MailboxNotAuthenticatedException If this operation is attempted before loading the list of messages.
+     */
+    public long getTotalUndeletedFileSize(boolean includeDeleted) throws MailboxNotAuthenticatedException {
+        checkLoaded();
+        return includeDeleted ? totalFileSize : totalFileSize - deletedFileSize;
+    }
+
+    /**
+     * Deletes the files for each message currently tagged for deletion. This operation cannot be undone, and for POP3
+     * should only be performed when the corresponding session is complete. If the corresponding messages have not been
+     * loaded, this method performs no operation. The size of the messages actually deleted is subtracted from the
+     * storage used by the mailbox.
+     */
+    public void deleteMessagesTaggedForDeletion() {
+        if (messages == null || deletedCount == 0)
+            return;
+        List<Long> removed = storage.remove(messages, deleted);
+        Quotas.getUsageOf(user).add(-(removed.size() == deletedCount ? deletedFileSize : getFileSize(removed)));
+        if (metadata == null)
+            metadata = new MailboxMetadata(mailDirectory);
+        metadata.removeAll(removed);
+    }
+
+    /**
+     * Returns the total size of the messages tagged for deletion that have one of the given identifiers.
+     */
+    private long getFileSize(List<Long> ids) {
+        Set<Long> removed = new HashSet<>(ids);
+        long total = 0;
+        for (int i = deleted.nextSetBit(0); i >= 0; i = deleted.nextSetBit(i + 1)) {
+            if (removed.contains(messages.getId(i)))
+                total += messages.getFileSize(i);
+        }
+        return total;
+    }
+
+    /**
+     * Releases the exclusive access to the user's maildrop acquired by <code>loadMessages()</code>, discarding the
+     * loaded messages. Messages tagged for deletion are not deleted. Has no effect if the messages are not loaded.
+     */
+    public void unlock() {
+        if (messages == null)
+            return;
+        messages = null;
+        deleted = null;
+        MaildropLocks.unlock(user, this);
+    }
+
+    private void checkLoaded() throws MailboxNotAuthenticatedException {
+        if (messages == null)
+            throw new MailboxNotAuthenticatedException();
+    }
+
+    private void checkIndex(int index) throws MailboxNotAuthenticatedException, IndexOutOfBoundsException {
+        checkLoaded();
+        if (index < 1 || index > messages.size())
+            throw new IndexOutOfBoundsException(index);
+    }
+
+    /**
+     * Exception used when attempting to obtain a mailbox for a user that is not in the database.
+     */
+    public static class InvalidUserException extends RuntimeException {
+    }
+
+    /**
+     * Exception used when attempting to perform operations that require authentication, but the authentication was not
+     * performed or was unsuccessful.
+     */
+    public static class MailboxNotAuthenticatedException extends RuntimeException {
+    }
+
+    /**
+     * Exception used when attempting to load the messages of a user whose maildrop is already in use by another
+     * session.
+     */
+    public static class MaildropLockedException extends RuntimeException {
+    }
+}
@@ -0,0 +1,183 @@
+package mailbox;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Ordered list of the messages in a mailbox directory, together with their sizes. Messages are identified by the
+ * numeric index in their file name (<code>N.mail</code>) and kept in ascending order of that index. Files with any
+ * other name are not part of the mailbox.
+ * <p>
+ * Adding a message with a higher index than all others (as is the case for every delivery) is done in place, so
+ * snapshots taken earlier keep seeing the same messages; any other change replaces the underlying arrays.
+ */
+class MailboxIndex {
+
+    private final File directory;
+    private long[] ids;
+    private long[] sizes;
+    private int count;
+
+    /**
+     * Builds the index by scanning the mailbox directory. If the directory does not exist, the index is empty.
+     *
+     * @param directory The mailbox directory.
+     */
+    MailboxIndex(File directory) {
+        this.directory = directory;
+        String[] names = directory.list();
+        long[] found = new long[names == null ? 0 : names.length];
+        int n = 0;
+        if (names != null) {
+            for (String name : names) {
+                long id = parseId(name);
+                if (id >= 0)
+                    found[n++] = id;
+            }
+        }
+        Arrays.sort(found, 0, n);
+        this.ids = found;
+        this.sizes = new long[found.length];
+        for (int i = 0; i < n; i++)
+            sizes[i] = new File(directory, ids[i] + Mailbox.MAIL_FILE_SUFFIX).length();
+        this.count = n;
+    }
+
+    /**
+     * Returns the numeric index of a message file name.
+     *
+     * @param name The file name, without any directory.
+     * @return The index of the message, or -1 if the name is not the name of a message file.
+     */
+    static long parseId(String name) {
+        if (!name.endsWith(Mailbox.MAIL_FILE_SUFFIX))
+            return -1;
+        try {
+            return Long.parseLong(name.substring(0, name.length() - Mailbox.MAIL_FILE_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the number of messages in the index.
+     */
+    synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Returns an immutable view of the messages currently in the index.
+     */
+    synchronized Snapshot snapshot() {
+        return new Snapshot(directory, ids, sizes, count);
+    }
+
+    /**
+     * Adds a message to the index, or updates its size if it is already present.
+     *
+     * @return true if the message was not yet in the index.
+     */
+    synchronized boolean add(long id, long size) {
+        if (count == 0 || id > ids[count - 1]) {
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, Math.max(16, count * 2));
+                sizes = Arrays.copyOf(sizes, ids.length);
+            }
+            ids[count] = id;
+            sizes[count] = size;
+            count++;
+            return true;
+        }
+        int position = Arrays.binarySearch(ids, 0, count, id);
+        if (position >= 0) {
+            if (sizes[position] != size) {
+                sizes = Arrays.copyOf(sizes, sizes.length);
+                sizes[position] = size;
+            }
+            return false;
+        }
+        position = -position - 1;
+        long[] newIds = new long[Math.max(16, count + 1)];
+        long[] newSizes = new long[newIds.length];
+        System.arraycopy(ids, 0, newIds, 0, position);
+        System.arraycopy(sizes, 0, newSizes, 0, position);
+        System.arraycopy(ids, position, newIds, position + 1, count - position);
+        System.arraycopy(sizes, position, newSizes, position + 1, count - position);
+        newIds[position] = id;
+        newSizes[position] = size;
+        ids = newIds;
+        sizes = newSizes;
+        count++;
+        return true;
+    }
+
+    /**
+     * Removes a message from the index, if present.
+     *
+     * @return true if the message was in the index.
+     */
+    synchronized boolean remove(long id) {
+        int position = Arrays.binarySearch(ids, 0, count, id);
+        if (position < 0)
+            return false;
+        long[] newIds = new long[ids.length];
+        long[] newSizes = new long[ids.length];
+        System.arraycopy(ids, 0, newIds, 0, position);
+        System.arraycopy(sizes, 0, newSizes, 0, position);
+        System.arraycopy(ids, position + 1, newIds, position, count - position - 1);
+        System.arraycopy(sizes, position + 1, newSizes, position, count - position - 1);
+        ids = newIds;
+        sizes = newSizes;
+        count--;
+        return true;
+    }
+
+    /**
+     * Immutable list of the messages in a mailbox at a particular point in time.
+     */
+    static class Snapshot implements MailStorage.MessageList {
+
+        private final File directory;
+        private final long[] ids;
+        private final long[] sizes;
+        private final int count;
+
+        private Snapshot(File directory, long[] ids, long[] sizes, int count) {
+            this.directory = directory;
+            this.ids = ids;
+            this.sizes = sizes;
+            this.count = count;
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+
+        @Override
+        public long getId(int i) {
+            return ids[i];
+        }
+
+        @Override
+        public long getFileSize(int i) {
+            return sizes[i];
+        }
+
+        @Override
+        public long getLastModified(int i) {
+            return getFile(i).lastModified();
+        }
+
+        @Override
+        public File getFile(int i) {
+            return new File(directory, ids[i] + Mailbox.MAIL_FILE_SUFFIX);
+        }
+
+        @Override
+        public MessageContent open(int i) throws IOException {
+            return new DirectoryStorage.FileContent(getFile(i));
+        }
+    }
+}
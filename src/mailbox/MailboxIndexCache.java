@@ -0,0 +1,231 @@
+package mailbox;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide cache of mailbox indexes, so that opening a mailbox that has not changed does not require scanning its
+ * directory again. Indexes are kept up to date by the server's own deliveries and deletions, and by a background thread
+ * watching the mailbox directories for changes made outside the server. The least recently used indexes are evicted
+ * when the estimated memory used by all indexes exceeds the memory budget.
+ */
+public class MailboxIndexCache {
+
+    public static final long DEFAULT_MEMORY_BUDGET = 64L * 1024 * 1024;
+    private static final int BYTES_PER_MESSAGE = 2 * Long.BYTES;
+
+    private static final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private static final Map<WatchKey, Entry> watched = new HashMap<>();
+    private static final AtomicLong memoryUsed = new AtomicLong();
+    private static volatile long memoryBudget = DEFAULT_MEMORY_BUDGET;
+    private static WatchService watchService = null;
+
+    private MailboxIndexCache() {
+    }
+
+    /**
+     * Sets the estimated amount of memory that the cached indexes may use before the least recently used ones are
+     * evicted.
+     *
+     * @param bytes The memory budget, in bytes.
+     */
+    public static void setMemoryBudget(long bytes) {
+        memoryBudget = bytes;
+        synchronized (MailboxIndexCache.class) {
+            evict();
+        }
+    }
+
+    /**
+     * Returns the current list of messages in a user's mailbox, scanning the mailbox directory only if it is not
+     * cached.
+     *
+     * @param user      The user's address, including domain name.
+     * @param directory The user's mailbox directory.
+     * @return A snapshot of the mailbox index.
+     */
+    static MailboxIndex.Snapshot get(String user, File directory) {
+        Entry entry;
+        synchronized (MailboxIndexCache.class) {
+            entry = entries.get(user);
+            if (entry == null || (entry.watchKey == null && directory.isDirectory())) {
+                // The directory is watched before it is scanned, so no change is missed
+                if (entry != null)
+                    remove(user);
+                entry = new Entry(user, directory);
+                entry.watchKey = watch(directory, entry);
+                entry.index = new MailboxIndex(directory);
+                entries.put(user, entry);
+                memoryUsed.addAndGet((long) entry.index.size() * BYTES_PER_MESSAGE);
+                evict();
+            }
+        }
+        return entry.index.snapshot();
+    }
+
+    /**
+     * Records a message that was added to a user's mailbox. Has no effect if the mailbox is not cached.
+     *
+     * @param user The user's address, including domain name.
+     * @param file The file of the new message.
+     */
+    static void messageAdded(String user, File file) {
+        Entry entry;
+        synchronized (MailboxIndexCache.class) {
+            entry = entries.get(user);
+        }
+        if (entry != null)
+            entry.added(file.getName());
+    }
+
+    /**
+     * Records a message that was removed from a user's mailbox. Has no effect if the mailbox is not cached.
+     *
+     * @param user The user's address, including domain name.
+     * @param file The file of the removed message.
+     */
+    static void messageRemoved(String user, File file) {
+        Entry entry;
+        synchronized (MailboxIndexCache.class) {
+            entry = entries.get(user);
+        }
+        if (entry != null)
+            entry.removed(file.getName());
+    }
+
+    private static void remove(String user) {
+        Entry entry = entries.remove(user);
+        if (entry == null)
+            return;
+        if (entry.watchKey != null) {
+            entry.watchKey.cancel();
+            watched.remove(entry.watchKey);
+        }
+        synchronized (entry.index) {
+            entry.evicted = true;
+            memoryUsed.addAndGet(-(long) entry.index.size() * BYTES_PER_MESSAGE);
+        }
+    }
+
+    private static void evict() {
+        // The most recently used index is always kept
+        while (memoryUsed.get() > memoryBudget && entries.size() > 1)
+            remove(entries.keySet().iterator().next());
+    }
+
+    /**
+     * Registers a mailbox directory with the watch service, starting the watching thread if needed.
+     *
+     * @return The key of the registration, or null if the directory cannot be watched (e.g., it does not exist yet).
+     */
+    private static WatchKey watch(File directory, Entry entry) {
+        if (!directory.isDirectory())
+            return null;
+        try {
+            if (watchService == null) {
+                watchService = FileSystems.getDefault().newWatchService();
+                Thread watcher = new Thread(MailboxIndexCache::processEvents, "mailbox-index-watcher");
+                watcher.setDaemon(true);
+                watcher.start();
+            }
+            WatchKey key = directory.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            watched.put(key, entry);
+            return key;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Applies the changes made to watched mailbox directories to the corresponding indexes. Runs in a background
+     * thread for the lifetime of the server.
+     */
+    private static void processEvents() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            Entry entry;
+            synchronized (MailboxIndexCache.class) {
+                entry = watched.get(key);
+            }
+            if (entry == null)
+                continue;
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    // Some changes were lost, the index must be rebuilt
+                    synchronized (MailboxIndexCache.class) {
+                        if (entries.get(entry.user) == entry)
+                            remove(entry.user);
+                    }
+                    break;
+                }
+                String name = ((Path) event.context()).getFileName().toString();
+                if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE)
+                    entry.removed(name);
+                else
+                    entry.added(name);
+            }
+            if (!key.reset()) {
+                // The directory no longer exists
+                synchronized (MailboxIndexCache.class) {
+                    if (entries.get(entry.user) == entry)
+                        remove(entry.user);
+                }
+            }
+        }
+    }
+
+    /**
+     * A cached mailbox index, with the registration of its directory in the watch service.
+     */
+    private static class Entry {
+
+        private final String user;
+        private final File directory;
+        private MailboxIndex index;
+        private WatchKey watchKey;
+        private boolean evicted = false;
+
+        Entry(String user, File directory) {
+            this.user = user;
+            this.directory = directory;
+        }
+
+        void added(String name) {
+            long id = MailboxIndex.parseId(name);
+            if (id < 0)
+                return;
+            File file = new File(directory, name);
+            if (!file.isFile())
+                return;
+            synchronized (index) {
+                if (index.add(id, file.length()) && !evicted)
+                    memoryUsed.addAndGet(BYTES_PER_MESSAGE);
+            }
+        }
+
+        void removed(String name) {
+            long id = MailboxIndex.parseId(name);
+            if (id < 0)
+                return;
+            synchronized (index) {
+                if (index.remove(id) && !evicted)
+                    memoryUsed.addAndGet(-BYTES_PER_MESSAGE);
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package mailbox;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Persistent metadata of the messages in a mailbox, stored in a file (<code>.index</code>) in the mailbox directory
+ * with one line per message. The metadata of a message is computed the first time it is needed and appended to the
+ * file, so later sessions can use it without reading the message again. Entries are validated against the size and
+ * modification time of the message file before being used.
+ */
+class MailboxMetadata {
+
+    public static final String FILE_NAME = ".index";
+
+    private final File file;
+    private final Map<Long, MessageMetadata> entries = new HashMap<>();
+    private int staleEntries = 0;
+
+    /**
+     * Loads the metadata file of a mailbox, if it exists.
+     *
+     * @param directory The mailbox directory.
+     */
+    MailboxMetadata(File directory) {
+        this.file = new File(directory, FILE_NAME);
+        try (BufferedReader reader = new BufferedReader(new FileReader(file, StandardCharsets.US_ASCII))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                MessageMetadata metadata = MessageMetadata.parse(line);
+                if (metadata != null && entries.put(metadata.getId(), metadata) != null)
+                    staleEntries++;
+            }
+        } catch (IOException e) {
+            // No metadata yet, or unreadable; it is computed again as needed
+        }
+    }
+
+    /**
+     * Returns the metadata of a message, computing it and saving it to the metadata file if it is not known yet or
+     * no longer valid.
+     *
+     * @param messages The list of messages of the mailbox.
+     * @param i        The (0-based) index of the message in the list.
+     * @return The metadata of the message.
+     * @throws IOException If the message cannot be read.
+     */
+    synchronized MessageMetadata get(MailStorage.MessageList messages, int i) throws IOException {
+        long id = messages.getId(i);
+        long lastModified = messages.getLastModified(i);
+        MessageMetadata metadata = entries.get(id);
+        if (metadata != null && metadata.isValidFor(messages.getFileSize(i), lastModified))
+            return metadata;
+        if (metadata != null)
+            staleEntries++;
+        try (MessageContent content = messages.open(i)) {
+            metadata = MessageMetadata.compute(id, content, lastModified);
+        }
+        entries.put(id, metadata);
+        // A single write of the complete line, so lines appended concurrently are not interleaved
+        try (OutputStream out = new FileOutputStream(file, true)) {
+            out.write((metadata.format() + "\n").getBytes(StandardCharsets.US_ASCII));
+        } catch (IOException e) {
+            // The metadata is still valid for this session, it is saved again next time
+        }
+        return metadata;
+    }
+
+    /**
+     * Removes the entries of deleted messages, rewriting the metadata file if it contains many entries that are no
+     * longer needed.
+     *
+     * @param ids The identifiers of the deleted messages.
+     */
+    synchronized void removeAll(Iterable<Long> ids) {
+        for (long id : ids) {
+            if (entries.remove(id) != null)
+                staleEntries++;
+        }
+        if (staleEntries <= entries.size())
+            return;
+        File temp = new File(file.getParentFile(), FILE_NAME + ".tmp");
+        try (PrintWriter out = new PrintWriter(temp, StandardCharsets.US_ASCII)) {
+            for (MessageMetadata metadata : entries.values())
+                out.print(metadata.format() + "\n");
+        } catch (IOException e) {
+            return;
+        }
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            staleEntries = 0;
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package mailbox;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide table of the exclusive locks on users' maildrops held by POP3 sessions (RFC 1939, section 8). Each user
+ * has its own entry, so sessions for different users never contend, and a lock is acquired or released with a single
+ * atomic update of the table, without blocking: a session that finds the maildrop locked is refused immediately.
+ * Deliveries do not take these locks, since new messages only become visible to sessions that load the mailbox after
+ * the delivery.
+ */
+class MaildropLocks {
+
+    private static final Map<String, Mailbox> owners = new ConcurrentHashMap<>();
+
+    private MaildropLocks() {
+    }
+
+    /**
+     * Acquires the lock on a user's maildrop, if it is not held by another mailbox object.
+     *
+     * @param user  The user's address.
+     * @param owner The mailbox object acquiring the lock.
+     * @return true if the lock is now held by the owner (including if it already was), and false otherwise.
+     */
+    static boolean tryLock(String user, Mailbox owner) {
+        Mailbox current = owners.putIfAbsent(user, owner);
+        return current == null || current == owner;
+    }
+
+    /**
+     * Releases the lock on a user's maildrop, if it is held by the owner.
+     *
+     * @param user  The user's address.
+     * @param owner The mailbox object that acquired the lock.
+     */
+    static void unlock(String user, Mailbox owner) {
+        owners.remove(user, owner);
+    }
+}
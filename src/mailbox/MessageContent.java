@@ -0,0 +1,42 @@
+package mailbox;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Read-only access to the content of a mail message, regardless of how the mailbox is stored. Content can be read at
+ * any position, or transferred directly to a channel (e.g., a socket) without being copied through an intermediate
+ * buffer whenever the storage allows it. Must be closed after use.
+ */
+public interface MessageContent extends Closeable {
+
+    /**
+     * Returns the size of the message.
+     *
+     * @return The size of the message, in bytes.
+     */
+    long size();
+
+    /**
+     * Reads content into a buffer, starting at a particular position of the message.
+     *
+     * @param dst      The buffer into which bytes are to be transferred.
+     * @param position The position in the message at which to start reading.
+     * @return The number of bytes read, or -1 if the position is at or after the end of the message.
+     * @throws IOException If the content cannot be read.
+     */
+    int read(ByteBuffer dst, long position) throws IOException;
+
+    /**
+     * Transfers content to a channel, starting at a particular position of the message. As with
+     * <code>FileChannel.transferTo()</code>, fewer bytes than requested may be transferred.
+     *
+     * @param position The position in the message at which to start the transfer.
+     * @param count    The maximum number of bytes to transfer.
+     * @param target   The target channel.
+     * @return The number of bytes transferred.
+     * @throws IOException If the content cannot be read or written to the channel.
+     */
+    long transferTo(long position, long count, WritableByteChannel target) throws IOException;
+}
@@ -0,0 +1,139 @@
+package mailbox;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Information about the content of a message file that is expensive to obtain, as it requires reading the whole file:
+ * where the headers end, and whether the content must be transformed before being sent to a POP3 client. Also holds a
+ * unique identifier for the message, which does not change for as long as the message is in the mailbox.
+ */
+public class MessageMetadata {
+
+    private static final int SCAN_BUFFER_SIZE = 8192;
+
+    private final long id;
+    private final String uniqueId;
+    private final long size;
+    private final long lastModified;
+    private final long headerEnd;
+    private final boolean dotStuffingNeeded;
+
+    MessageMetadata(long id, String uniqueId, long size, long lastModified, long headerEnd, boolean dotStuffingNeeded) {
+        this.id = id;
+        this.uniqueId = uniqueId;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.headerEnd = headerEnd;
+        this.dotStuffingNeeded = dotStuffingNeeded;
+    }
+
+    /**
+     * Reads the content of a message and computes its metadata.
+     *
+     * @param id           The identifier of the message in the mailbox.
+     * @param content      The content of the message.
+     * @param lastModified The time the message was last modified, in milliseconds since the epoch.
+     * @return The metadata of the message.
+     * @throws IOException If the content cannot be read.
+     */
+    static MessageMetadata compute(long id, MessageContent content, long lastModified) throws IOException {
+        long headerEnd = -1;
+        boolean stuffing = false;
+        boolean lineStart = true;
+        boolean afterCR = false;
+        boolean lineEmpty = true;
+        long position = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        while (content.read(buffer, position) >= 0) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                position++;
+                if (lineStart && b == '.')
+                    stuffing = true;
+                if (b == '\n') {
+                    if (!afterCR)
+                        stuffing = true;
+                    if (headerEnd < 0 && lineEmpty)
+                        headerEnd = position;
+                    lineEmpty = true;
+                } else if (b != '\r') {
+                    lineEmpty = false;
+                }
+                lineStart = b == '\n';
+                afterCR = b == '\r';
+            }
+            buffer.clear();
+        }
+        // Content that does not end with a line terminator needs one before the terminating line
+        if (position > 0 && !lineStart)
+            stuffing = true;
+        return new MessageMetadata(id, Long.toString(id, 36) + "-" + Long.toString(lastModified, 36), position,
+                lastModified, headerEnd < 0 ? position : headerEnd, stuffing);
+    }
+
+    /**
+     * Parses the metadata from a line of the mailbox's metadata file.
+     *
+     * @return The metadata, or null if the line is malformed.
+     */
+    static MessageMetadata parse(String line) {
+        String[] split = line.split(" ");
+        if (split.length != 6)
+            return null;
+        try {
+            return new MessageMetadata(Long.parseLong(split[0]), split[1], Long.parseLong(split[2]),
+                    Long.parseLong(split[3]), Long.parseLong(split[4]), split[5].equals("S"));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Formats the metadata as a line of the mailbox's metadata file, without line terminator.
+     */
+    String format() {
+        return id + " " + uniqueId + " " + size + " " + lastModified + " " + headerEnd + " "
+                + (dotStuffingNeeded ? "S" : "C");
+    }
+
+    /**
+     * Checks if the metadata still corresponds to the current content of a message.
+     */
+    boolean isValidFor(long size, long lastModified) {
+        return this.size == size && this.lastModified == lastModified;
+    }
+
+    long getId() {
+        return id;
+    }
+
+    /**
+     * Returns the unique identifier of the message, as used by the POP3 UIDL command.
+     *
+     * @return A string of up to 70 printable characters, unique within the mailbox.
+     */
+    public String getUniqueId() {
+        return uniqueId;
+    }
+
+    /**
+     * Returns the position of the first byte of the message body, after the blank line that ends the headers. If the
+     * message has no body, this is the size of the message.
+     *
+     * @return The offset of the body in the message file, in bytes.
+     */
+    public long getHeaderEnd() {
+        return headerEnd;
+    }
+
+    /**
+     * Returns true if the content must be dot-stuffed or have its line terminators normalized before being sent to a
+     * POP3 client, or false if the file can be sent as is.
+     *
+     * @return true if the content must be transformed, and false otherwise.
+     */
+    public boolean isDotStuffingNeeded() {
+        return dotStuffingNeeded;
+    }
+}
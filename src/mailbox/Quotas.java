@@ -0,0 +1,283 @@
+package mailbox;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-user mailbox quotas, loaded from the quotas database (<code>quotas.txt</code>, next to <code>users.txt</code>),
+ * and the storage used by each mailbox. Each line of the database contains a user's address followed by a space and
+ * the maximum size of the user's mailbox, in bytes; a line for <code>*</code> sets the quota of the users not listed.
+ * Users without a quota have unlimited storage. Like the users database, the file is checked for changes at most once
+ * per <code>UserDirectory.RELOAD_CHECK_INTERVAL</code> milliseconds.
+ * <p>
+ * The storage used by each mailbox is kept up to date as messages are delivered and deleted, so checking a quota never
+ * scans the mailbox. It is saved in the mailbox directory (<code>.usage</code>) by a background thread shortly after
+ * it changes, so it is only computed from the messages, also in the background, the first time a mailbox is used, or
+ * if the file is missing.
+ */
+public class Quotas {
+
+    public static final String QUOTA_FILE_NAME = "quotas.txt";
+    public static final String USAGE_FILE_NAME = ".usage";
+    public static final long UNLIMITED = Long.MAX_VALUE;
+    public static final long FLUSH_INTERVAL = 1000;
+    private static final String DEFAULT_ENTRY = "*";
+
+    private static volatile Snapshot snapshot = null;
+    private static volatile long nextReloadCheck = 0;
+    private static final Map<String, Usage> usages = new ConcurrentHashMap<>();
+    private static volatile ScheduledExecutorService flusher = null;
+
+    private Quotas() {
+    }
+
+    /**
+     * Returns the maximum size of a user's mailbox.
+     *
+     * @param user The user's address, including domain name.
+     * @return The quota, in bytes, or <code>UNLIMITED</code> if the user has no quota.
+     */
+    public static long getQuota(String user) {
+        Snapshot current = getSnapshot();
+        Long quota = current.quotas.get(user);
+        return quota != null ? quota : current.defaultQuota;
+    }
+
+    /**
+     * Returns the storage used by a user's mailbox. Never waits for the disk: the first call for a mailbox only
+     * schedules reading its saved usage (or computing it from the messages, if it was never saved), and the usage is
+     * only complete once it is read.
+     *
+     * @param user The user's address, including domain name.
+     * @return The total size of the messages in the mailbox, in bytes.
+     */
+    public static long getUsage(String user) {
+        return getUsageOf(user).get();
+    }
+
+    /**
+     * Returns the storage used by a user's mailbox, scheduling reading it the first time.
+     */
+    static Usage getUsageOf(String user) {
+        Usage usage = usages.get(user);
+        return usage != null ? usage : usages.computeIfAbsent(user, Usage::load);
+    }
+
+    /**
+     * Returns the current snapshot of the quotas database, loading a new one first if the file was modified.
+     */
+    private static Snapshot getSnapshot() {
+        Snapshot current = snapshot;
+        long now = System.currentTimeMillis();
+        if (current != null && now < nextReloadCheck)
+            return current;
+        synchronized (Quotas.class) {
+            current = snapshot;
+            if (current != null && now < nextReloadCheck)
+                return current;
+            File file = new File(QUOTA_FILE_NAME);
+            long lastModified = file.lastModified();
+            if (current == null || current.lastModified != lastModified)
+                snapshot = current = load(file, lastModified);
+            nextReloadCheck = now + UserDirectory.RELOAD_CHECK_INTERVAL;
+            return current;
+        }
+    }
+
+    private static Snapshot load(File file, long lastModified) {
+        Map<String, Long> quotas = new HashMap<>();
+        long defaultQuota = UNLIMITED;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] split = line.trim().split("\\s+");
+                if (split.length != 2)
+                    continue;
+                try {
+                    long quota = Long.parseLong(split[1]);
+                    if (split[0].equals(DEFAULT_ENTRY))
+                        defaultQuota = quota;
+                    else
+                        quotas.put(split[0], quota);
+                } catch (NumberFormatException e) {
+                    // Ignore the malformed entry
+                }
+            }
+        } catch (IOException e) {
+            // Do nothing, accept the quotas read so far (none if the file does not exist)
+        }
+        return new Snapshot(Collections.unmodifiableMap(quotas), defaultQuota, lastModified);
+    }
+
+    /**
+     * Saves the changes to the storage used by the mailboxes, and reads again the usage modified by other processes.
+     * Runs periodically in a background thread.
+     */
+    private static void updateAll() {
+        for (Usage usage : usages.values())
+            usage.update();
+    }
+
+    private static ScheduledExecutorService getFlusher() {
+        ScheduledExecutorService current = flusher;
+        return current != null ? current : startFlusher();
+    }
+
+    private static synchronized ScheduledExecutorService startFlusher() {
+        if (flusher != null)
+            return flusher;
+        flusher = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "quota-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(Quotas::updateAll, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+        return flusher;
+    }
+
+    /**
+     * Immutable set of quotas loaded from a particular version of the quotas database.
+     */
+    private static class Snapshot {
+
+        private final Map<String, Long> quotas;
+        private final long defaultQuota;
+        private final long lastModified;
+
+        Snapshot(Map<String, Long> quotas, long defaultQuota, long lastModified) {
+            this.quotas = quotas;
+            this.defaultQuota = defaultQuota;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * Storage used by a mailbox, and the file it is saved to. The SMTP and POP3 servers run in separate processes, so
+     * the file is the reference: each process only keeps the changes it made since it last updated the file, and adds
+     * them to the saved value while holding a lock on the file. The saved value is read again if the file was modified
+     * by another process, checked every <code>FLUSH_INTERVAL</code> milliseconds.
+     * <p>
+     * The file is only ever accessed by the background thread, so sessions checking a quota never wait for the disk.
+     * Until the saved value is read, or computed from the messages if it was never saved, only the changes made since
+     * are counted.
+     */
+    static class Usage {
+
+        private final String user;
+        private final File file;
+        private volatile long saved = 0;
+        private final AtomicLong unsaved = new AtomicLong();
+        private long lastModified = 0;
+        private boolean loaded = false;
+
+        private Usage(String user) {
+            this.user = user;
+            this.file = new File(new File(Mailbox.USER_MAIL_BASE_DIRECTORY, user), USAGE_FILE_NAME);
+        }
+
+        /**
+         * Creates the usage of a mailbox, and schedules reading its saved value.
+         */
+        private static Usage load(String user) {
+            Usage usage = new Usage(user);
+            getFlusher().execute(usage::update);
+            return usage;
+        }
+
+        /**
+         * Returns the total size of the messages in the mailbox, including the changes not saved yet.
+         */
+        long get() {
+            return Math.max(0, saved + unsaved.get());
+        }
+
+        /**
+         * Adds the size of the messages delivered to the mailbox, or subtracts that of the messages deleted.
+         *
+         * @param delta The number of bytes added to the mailbox, negative if they were removed.
+         */
+        void add(long delta) {
+            unsaved.addAndGet(delta);
+        }
+
+        /**
+         * Adds the unsaved changes to the value in the file, and reads back the result, while holding a lock on the
+         * file. If the file holds no value, the usage is computed from the messages. Only called by the background
+         * thread.
+         */
+        private synchronized void update() {
+            long delta = unsaved.get();
+            if (loaded && delta == 0 && file.lastModified() == lastModified)
+                return;
+            //noinspection ResultOfMethodCallIgnored
+            file.getParentFile().mkdirs();
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // Released when the channel is closed
+                channel.lock();
+                long value = read(channel);
+                boolean computed = value < 0;
+                if (computed) {
+                    // The messages already include the changes made so far
+                    value = computeUsage();
+                } else {
+                    value = Math.max(0, value + delta);
+                }
+                if (computed || delta != 0) {
+                    ByteBuffer bytes = ByteBuffer.wrap((value + "\n").getBytes(StandardCharsets.US_ASCII));
+                    channel.truncate(0);
+                    while (bytes.hasRemaining())
+                        channel.write(bytes, bytes.position());
+                }
+                // Briefly counts the changes twice rather than not at all
+                saved = value;
+                unsaved.addAndGet(-delta);
+                lastModified = file.lastModified();
+                loaded = true;
+            } catch (IOException | RuntimeException e) {
+                // Tried again by the next update
+            }
+        }
+
+        private long computeUsage() {
+            try {
+                return new Mailbox(user).computeUsage();
+            } catch (Mailbox.InvalidUserException e) {
+                // The user was removed
+                return 0;
+            }
+        }
+
+        /**
+         * Reads the value saved in the file.
+         *
+         * @return The value, or -1 if the file is empty or does not hold a valid value.
+         */
+        private static long read(FileChannel channel) throws IOException {
+            ByteBuffer bytes = ByteBuffer.allocate(32);
+            while (bytes.hasRemaining() && channel.read(bytes, bytes.position()) > 0) {
+                // Read until the end of the file
+            }
+            try {
+                long value = Long.parseLong(new String(bytes.array(), 0, bytes.position(),
+                        StandardCharsets.US_ASCII).trim());
+                return value >= 0 ? value : -1;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+    }
+}
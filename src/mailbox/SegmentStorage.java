@@ -0,0 +1,521 @@
+package mailbox;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import net.EventLog;
+
+/**
+ * Storage format for mailboxes with many messages, which avoids one file per message. The content of all messages is
+ * appended to a single segment file (<code>mailbox.G.seg</code>, where G is the generation of the segment), and an
+ * index file (<code>mailbox.idx</code>) holds a header followed by one fixed-size record per message with its
+ * identifier, position and size in the segment, and the time it was added. Removing a message only appends a record
+ * marking it as removed; the space is reclaimed by compacting the segment in a background thread, once removed
+ * messages take more space than the remaining ones. Message content is read through slices of the memory-mapped
+ * segment.
+ * <p>
+ * Changes to the files are serialized with a lock on <code>mailbox.lock</code>, which is also honoured by other
+ * processes (e.g., the SMTP and POP3 servers). Compaction copies the remaining messages to a segment of the next
+ * generation and then replaces the index, so the mailbox is consistent at all times. Lists of messages loaded earlier
+ * keep reading from the old segment, which stays mapped in memory after it is deleted.
+ */
+class SegmentStorage implements MailStorage {
+
+    public static final String INDEX_FILE_NAME = "mailbox.idx";
+    public static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+    private static final String LOCK_FILE_NAME = "mailbox.lock";
+    private static final String SEGMENT_FILE_PREFIX = "mailbox.";
+    private static final String SEGMENT_FILE_SUFFIX = ".seg";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final long MAGIC = 0x4d424f5853454731L; // "MBOXSEG1"
+    private static final int RECORD_SIZE = 4 * Long.BYTES;
+    private static final int LOAD_ATTEMPTS = 3;
+    private static final long REMOVED = -1;
+
+    private static final Map<String, Object> locks = new ConcurrentHashMap<>();
+    private static final Set<String> pendingCompactions = ConcurrentHashMap.newKeySet();
+    private static ExecutorService compactor = null;
+
+    private final String user;
+    private final File mailDirectory;
+    private final File indexFile;
+    private final File lockFile;
+
+    SegmentStorage(String user, File mailDirectory) {
+        this.user = user;
+        this.mailDirectory = mailDirectory;
+        this.indexFile = new File(mailDirectory, INDEX_FILE_NAME);
+        this.lockFile = new File(mailDirectory, LOCK_FILE_NAME);
+    }
+
+    /**
+     * Checks if a mailbox directory is stored in this format.
+     */
+    static boolean isUsedBy(File mailDirectory) {
+        return new File(mailDirectory, INDEX_FILE_NAME).isFile();
+    }
+
+    /**
+     * Reads the index and maps the segment into memory. Reading the index does not require the lock, since records are
+     * only appended after the content they refer to is complete, and the index is replaced atomically by compaction.
+     *
+     * @throws UncheckedIOException If the index or segment cannot be read.
+     */
+    @Override
+    public MessageList load() {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                Index index = readIndex();
+                return new SegmentList(index, segmentFile(index.generation));
+            } catch (NoSuchFileException e) {
+                // The segment was replaced by a compaction after the index was read, read the new index
+                if (attempt >= LOAD_ATTEMPTS)
+                    throw new UncheckedIOException(e);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Creates a writer for a new message. The content is written to a temporary file in the mailbox directory, which is
+     * appended to the segment and deleted once the writer is closed.
+     */
+    @Override
+    public FileWriter newMessageWriter() throws IOException {
+        //noinspection ResultOfMethodCallIgnored
+        mailDirectory.mkdirs();
+        File temp = File.createTempFile("msg", TEMP_FILE_SUFFIX, mailDirectory);
+        return new FileWriter(temp) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                try {
+                    GroupCommit.await(GroupCommit.commit(deliver(temp.toPath())));
+                } finally {
+                    //noinspection ResultOfMethodCallIgnored
+                    temp.delete();
+                }
+            }
+        };
+    }
+
+    /**
+     * Appends the content to the segment, followed by its record in the index. The message is durable once the segment,
+     * the index and the mailbox directory (where either of them may have been created) are forced.
+     */
+    @Override
+    public List<Path> deliver(Path content) throws IOException {
+        return locked(() -> {
+            try (FileChannel index = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long generation = 0;
+                long nextId = 0;
+                if (index.size() < RECORD_SIZE) {
+                    writeFully(index, header(ByteBuffer.allocate(RECORD_SIZE), generation, nextId).flip(), 0);
+                } else {
+                    ByteBuffer header = readHeader(index);
+                    generation = header.getLong();
+                    nextId = header.getLong();
+                }
+                // A partially written record at the end (e.g., after a crash) is overwritten
+                long end = index.size() - (index.size() - RECORD_SIZE) % RECORD_SIZE;
+                long id = findNextId(index, nextId, end);
+                long offset;
+                long length;
+                try (FileChannel segment = FileChannel.open(segmentFile(generation).toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE);
+                     FileChannel source = FileChannel.open(content, StandardOpenOption.READ)) {
+                    offset = segment.size();
+                    length = source.size();
+                    for (long copied = 0; copied < length; ) {
+                        long transferred = segment.transferFrom(source, offset + copied, length - copied);
+                        if (transferred <= 0)
+                            throw new IOException("Message content changed during delivery: " + content);
+                        copied += transferred;
+                    }
+                }
+                writeFully(index, record(ByteBuffer.allocate(RECORD_SIZE), id, offset, length,
+                        System.currentTimeMillis()).flip(), end);
+                return List.of(segmentFile(generation).toPath(), indexFile.toPath(), mailDirectory.toPath());
+            }
+        });
+    }
+
+    /**
+     * Appends a record marking each message as removed, and schedules a compaction of the segment if removed messages
+     * now take more space than the remaining ones.
+     */
+    @Override
+    public List<Long> remove(MessageList messages, BitSet removed) {
+        SegmentList list = (SegmentList) messages;
+        List<Long> ids = new ArrayList<>(removed.cardinality());
+        long removedBytes = 0;
+        ByteBuffer records = ByteBuffer.allocate(removed.cardinality() * RECORD_SIZE);
+        long now = System.currentTimeMillis();
+        for (int i = removed.nextSetBit(0); i >= 0; i = removed.nextSetBit(i + 1)) {
+            record(records, list.getId(i), REMOVED, REMOVED, now);
+            ids.add(list.getId(i));
+            removedBytes += list.getFileSize(i);
+        }
+        try {
+            locked(() -> {
+                try (FileChannel index = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ,
+                        StandardOpenOption.WRITE)) {
+                    writeFully(index, records.flip(), index.size() - (index.size() - RECORD_SIZE) % RECORD_SIZE);
+                }
+                return null;
+            });
+        } catch (IOException e) {
+            return new ArrayList<>();
+        }
+        long unused = list.unusedBytes + removedBytes;
+        if (unused >= MIN_COMPACTION_SIZE && unused > list.liveBytes - removedBytes)
+            scheduleCompaction();
+        return ids;
+    }
+
+    /**
+     * Copies the messages that were not removed to a new segment, replaces the index, and deletes the old segment.
+     */
+    void compact() throws IOException {
+        locked(() -> {
+            Index index = readIndex();
+            File current = segmentFile(index.generation);
+            if (!current.isFile())
+                return null;
+            File next = segmentFile(index.generation + 1);
+            File temp = new File(mailDirectory, INDEX_FILE_NAME + TEMP_FILE_SUFFIX);
+            ByteBuffer records = ByteBuffer.allocate((index.count + 1) * RECORD_SIZE);
+            header(records, index.generation + 1, index.nextId);
+            try (FileChannel source = FileChannel.open(current.toPath(), StandardOpenOption.READ);
+                 FileChannel target = FileChannel.open(next.toPath(), StandardOpenOption.CREATE,
+                         StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                 FileChannel newIndex = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                         StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                long position = 0;
+                for (int i = 0; i < index.count; i++) {
+                    for (long copied = 0; copied < index.lengths[i]; ) {
+                        long transferred = source.transferTo(index.offsets[i] + copied, index.lengths[i] - copied,
+                                target);
+                        if (transferred <= 0)
+                            throw new IOException("Truncated mailbox segment: " + current);
+                        copied += transferred;
+                    }
+                    record(records, index.ids[i], position, index.lengths[i], index.timestamps[i]);
+                    position += index.lengths[i];
+                }
+                writeFully(newIndex, records.flip(), 0);
+                target.force(true);
+                newIndex.force(true);
+            }
+            Files.move(temp.toPath(), indexFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            Files.delete(current.toPath());
+            return null;
+        });
+    }
+
+    private void scheduleCompaction() {
+        if (!pendingCompactions.add(user))
+            return;
+        compactor().execute(() -> {
+            pendingCompactions.remove(user);
+            try {
+                compact();
+            } catch (IOException e) {
+                EventLog.log(EventLog.Level.ERROR, "mailbox", 0, null, "compaction-failed", user, EventLog.NO_CODE,
+                        e);
+            }
+        });
+    }
+
+    private static synchronized ExecutorService compactor() {
+        if (compactor == null) {
+            compactor = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, "mailbox-compactor");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return compactor;
+    }
+
+    /**
+     * Runs an operation holding both the lock of this mailbox within the process, and the lock on the mailbox's lock
+     * file, which excludes other processes. File locks are held on behalf of the whole process, so they cannot be used
+     * to exclude other threads.
+     */
+    private <T> T locked(LockedOperation<T> operation) throws IOException {
+        synchronized (locks.computeIfAbsent(user, u -> new Object())) {
+            //noinspection ResultOfMethodCallIgnored
+            mailDirectory.mkdirs();
+            try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE)) {
+                FileLock lock = channel.lock();
+                try {
+                    return operation.run();
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+    }
+
+    private File segmentFile(long generation) {
+        return new File(mailDirectory, SEGMENT_FILE_PREFIX + generation + SEGMENT_FILE_SUFFIX);
+    }
+
+    /**
+     * Reads the whole index, leaving out messages that were removed.
+     */
+    private Index readIndex() throws IOException {
+        Index index = new Index();
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.wrap(Files.readAllBytes(indexFile.toPath()));
+        } catch (NoSuchFileException e) {
+            // Nothing was delivered to the mailbox yet
+            return index;
+        }
+        if (buffer.remaining() < RECORD_SIZE || buffer.getLong() != MAGIC)
+            throw new IOException("Invalid mailbox index: " + indexFile);
+        index.generation = buffer.getLong();
+        index.nextId = buffer.getLong();
+        buffer.getLong();
+        int records = buffer.remaining() / RECORD_SIZE;
+        long[] ids = new long[records];
+        long[] offsets = new long[records];
+        long[] lengths = new long[records];
+        long[] timestamps = new long[records];
+        BitSet removed = new BitSet(records);
+        int count = 0;
+        for (int i = 0; i < records; i++) {
+            long id = buffer.getLong();
+            long offset = buffer.getLong();
+            long length = buffer.getLong();
+            long timestamp = buffer.getLong();
+            index.nextId = Math.max(index.nextId, id + 1);
+            if (length == REMOVED) {
+                // Records are appended in ascending order of identifier
+                int position = Arrays.binarySearch(ids, 0, count, id);
+                if (position >= 0)
+                    removed.set(position);
+                continue;
+            }
+            ids[count] = id;
+            offsets[count] = offset;
+            lengths[count] = length;
+            timestamps[count] = timestamp;
+            count++;
+        }
+        index.ids = new long[count - removed.cardinality()];
+        index.offsets = new long[index.ids.length];
+        index.lengths = new long[index.ids.length];
+        index.timestamps = new long[index.ids.length];
+        for (int i = 0; i < count; i++) {
+            if (removed.get(i))
+                continue;
+            index.ids[index.count] = ids[i];
+            index.offsets[index.count] = offsets[i];
+            index.lengths[index.count] = lengths[i];
+            index.timestamps[index.count] = timestamps[i];
+            index.count++;
+        }
+        return index;
+    }
+
+    private static ByteBuffer readHeader(FileChannel index) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_SIZE);
+        readFully(index, header, 0);
+        header.flip();
+        if (header.remaining() < RECORD_SIZE || header.getLong() != MAGIC)
+            throw new IOException("Invalid mailbox index");
+        return header;
+    }
+
+    /**
+     * Finds the identifier for a new message, reading the index backwards from the end until a message record is
+     * found. Only removal records, which are appended when a POP3 session ends, may have to be skipped, so the whole
+     * index is rarely read.
+     */
+    private static long findNextId(FileChannel index, long nextId, long end) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(128 * RECORD_SIZE);
+        long position = end;
+        while (position > RECORD_SIZE) {
+            long start = Math.max(RECORD_SIZE, position - buffer.capacity());
+            buffer.clear().limit((int) (position - start));
+            readFully(index, buffer, start);
+            for (int i = buffer.limit() - RECORD_SIZE; i >= 0; i -= RECORD_SIZE) {
+                nextId = Math.max(nextId, buffer.getLong(i) + 1);
+                if (buffer.getLong(i + 2 * Long.BYTES) != REMOVED)
+                    return nextId;
+            }
+            position = start;
+        }
+        return nextId;
+    }
+
+    private static ByteBuffer header(ByteBuffer buffer, long generation, long nextId) {
+        return buffer.putLong(MAGIC).putLong(generation).putLong(nextId).putLong(0);
+    }
+
+    private static ByteBuffer record(ByteBuffer buffer, long id, long offset, long length, long timestamp) {
+        return buffer.putLong(id).putLong(offset).putLong(length).putLong(timestamp);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0)
+                return;
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+
+    private interface LockedOperation<T> {
+        T run() throws IOException;
+    }
+
+    /**
+     * Contents of the index: the messages that were not removed, in ascending order of identifier.
+     */
+    private static class Index {
+
+        private long generation = 0;
+        private long nextId = 0;
+        private long[] ids = new long[0];
+        private long[] offsets = new long[0];
+        private long[] lengths = new long[0];
+        private long[] timestamps = new long[0];
+        private int count = 0;
+    }
+
+    /**
+     * List of the messages in the index, with the segment mapped into memory. Segments larger than the maximum size of
+     * a single mapping are mapped one message at a time instead.
+     */
+    private static class SegmentList implements MessageList {
+
+        private final Index index;
+        private final File segmentFile;
+        private final MappedByteBuffer segment;
+        private final long liveBytes;
+        private final long unusedBytes;
+
+        SegmentList(Index index, File segmentFile) throws IOException {
+            this.index = index;
+            this.segmentFile = segmentFile;
+            long live = 0;
+            for (int i = 0; i < index.count; i++)
+                live += index.lengths[i];
+            this.liveBytes = live;
+            if (index.count == 0 && !segmentFile.isFile()) {
+                this.segment = null;
+                this.unusedBytes = 0;
+                return;
+            }
+            try (FileChannel channel = FileChannel.open(segmentFile.toPath(), StandardOpenOption.READ)) {
+                long size = channel.size();
+                this.segment = size <= Integer.MAX_VALUE ? channel.map(FileChannel.MapMode.READ_ONLY, 0, size) : null;
+                this.unusedBytes = size - live;
+            }
+        }
+
+        @Override
+        public int size() {
+            return index.count;
+        }
+
+        @Override
+        public long getId(int i) {
+            return index.ids[i];
+        }
+
+        @Override
+        public long getFileSize(int i) {
+            return index.lengths[i];
+        }
+
+        @Override
+        public long getLastModified(int i) {
+            return index.timestamps[i];
+        }
+
+        @Override
+        public File getFile(int i) {
+            return null;
+        }
+
+        @Override
+        public MessageContent open(int i) throws IOException {
+            if (segment != null)
+                return new MappedContent(segment.slice((int) index.offsets[i], (int) index.lengths[i]));
+            try (FileChannel channel = FileChannel.open(segmentFile.toPath(), StandardOpenOption.READ)) {
+                return new MappedContent(channel.map(FileChannel.MapMode.READ_ONLY, index.offsets[i],
+                        index.lengths[i]));
+            }
+        }
+    }
+
+    /**
+     * Content of a message in a memory-mapped segment.
+     */
+    private static class MappedContent implements MessageContent {
+
+        private final ByteBuffer content;
+
+        MappedContent(ByteBuffer content) {
+            this.content = content;
+        }
+
+        @Override
+        public long size() {
+            return content.limit();
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) {
+            if (position >= content.limit())
+                return -1;
+            int length = (int) Math.min(dst.remaining(), content.limit() - position);
+            dst.put(dst.position(), content, (int) position, length);
+            dst.position(dst.position() + length);
+            return length;
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            if (position >= content.limit())
+                return 0;
+            return target.write(content.slice((int) position, (int) Math.min(count, content.limit() - position)));
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
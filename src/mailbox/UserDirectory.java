@@ -0,0 +1,267 @@
+package mailbox;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import net.EventLog;
+
+/**
+ * Directory of valid users and their credentials, loaded from the users database (<code>users.txt</code>). Each line
+ * contains a user's address followed by a space and either the password itself or a salted hash of the password in the
+ * form <code>{PBKDF2}iterations:salt:hash</code> (salt and hash in Base64), as printed by this class's
+ * <code>main()</code> method. Plain passwords are hashed when the file is loaded, so they are not kept in memory. Users
+ * whose hash is malformed are skipped, rather than accepting the hash as a plain password.
+ * <p>
+ * The directory is published as an immutable snapshot, so lookups never block. The file is checked for changes at most
+ * once per <code>RELOAD_CHECK_INTERVAL</code> milliseconds, and a new snapshot is loaded if it was modified, so changes
+ * do not require the server to be restarted. Successful password verifications are cached, so the key derivation is
+ * not repeated every time a user logs in.
+ */
+public class UserDirectory {
+
+    public static final long RELOAD_CHECK_INTERVAL = 1000;
+    public static final int DEFAULT_ITERATIONS = 100000;
+    public static final int MAX_CACHED_VERIFICATIONS = 10000;
+    private static final String PBKDF2_PREFIX = "{PBKDF2}";
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 32;
+    private static final SecureRandom random = new SecureRandom();
+
+    private static volatile Snapshot snapshot = null;
+    private static volatile long nextReloadCheck = 0;
+    private static final Map<String, CachedVerification> verifications = new ConcurrentHashMap<>();
+
+    private UserDirectory() {
+    }
+
+    /**
+     * Checks if a specified user address is a valid user, according to the user database.
+     *
+     * @param user The user's address, including domain name.
+     * @return true if the user is in the database, and false otherwise.
+     */
+    public static boolean isValidUser(String user) {
+        return getSnapshot().credentials.containsKey(user);
+    }
+
+    /**
+     * Checks if a password is the correct password for a user. The comparison takes the same time regardless of how
+     * much of the password matches.
+     *
+     * @param user     The user's address, including domain name.
+     * @param password The user's password, unencrypted.
+     * @return true if the user is in the database and the password is correct, and false otherwise.
+     */
+    public static boolean authenticate(String user, String password) {
+        Credential credential = getSnapshot().credentials.get(user);
+        if (credential == null || password == null)
+            return false;
+
+        CachedVerification cached = verifications.get(user);
+        if (cached != null && cached.credential == credential)
+            return MessageDigest.isEqual(cached.digest, cached.digest(password));
+
+        if (!credential.matches(password))
+            return false;
+        if (verifications.size() >= MAX_CACHED_VERIFICATIONS)
+            verifications.clear();
+        verifications.put(user, new CachedVerification(credential, password));
+        return true;
+    }
+
+    /**
+     * Returns the current snapshot of the directory, loading a new one first if the users database was modified.
+     */
+    private static Snapshot getSnapshot() {
+        Snapshot current = snapshot;
+        long now = System.currentTimeMillis();
+        if (current != null && now < nextReloadCheck)
+            return current;
+        synchronized (UserDirectory.class) {
+            // Another thread may have checked the file in the meantime
+            current = snapshot;
+            if (current != null && now < nextReloadCheck)
+                return current;
+            File file = new File(Mailbox.USER_FILE_NAME);
+            long lastModified = file.lastModified();
+            if (current == null || current.lastModified != lastModified)
+                snapshot = current = load(file, lastModified, current);
+            nextReloadCheck = now + RELOAD_CHECK_INTERVAL;
+            return current;
+        }
+    }
+
+    /**
+     * Loads the users database. Entries that did not change since the previous snapshot keep their existing
+     * credential, so their cached verifications remain valid.
+     */
+    private static Snapshot load(File file, long lastModified, Snapshot previous) {
+        Map<String, Credential> credentials = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] split = line.split(" ", 2);
+                if (split.length < 2)
+                    continue;
+                Credential credential = previous == null ? null : previous.credentials.get(split[0]);
+                if (credential == null || !credential.isSameEntry(split[1]))
+                    credential = Credential.parse(split[1]);
+                if (credential == null) {
+                    EventLog.log(EventLog.Level.WARN, "users", 0, null, "invalid-credential", split[0],
+                            EventLog.NO_CODE, null);
+                    continue;
+                }
+                credentials.put(split[0], credential);
+            }
+        } catch (IOException e) {
+            // Do nothing, accept the users read so far (none if the file does not exist)
+        }
+        return new Snapshot(Collections.unmodifiableMap(credentials), lastModified);
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        try {
+            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_LENGTH * 8);
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] sha256(byte[] salt, String password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            return digest.digest(password.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] newSalt() {
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        return salt;
+    }
+
+    /**
+     * Immutable set of users and credentials loaded from a particular version of the users database.
+     */
+    private static class Snapshot {
+
+        private final Map<String, Credential> credentials;
+        private final long lastModified;
+
+        Snapshot(Map<String, Credential> credentials, long lastModified) {
+            this.credentials = credentials;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * Salted hash of a user's password. Iterations equal to zero indicate a plain password from the database, which is
+     * hashed once with SHA-256.
+     */
+    private static class Credential {
+
+        private final String hashedEntry;
+        private final byte[] salt;
+        private final byte[] hash;
+        private final int iterations;
+
+        private Credential(String hashedEntry, byte[] salt, byte[] hash, int iterations) {
+            this.hashedEntry = hashedEntry;
+            this.salt = salt;
+            this.hash = hash;
+            this.iterations = iterations;
+        }
+
+        /**
+         * Parses the credential of an entry of the users database, either a hash or a plain password.
+         *
+         * @return The credential, or null if the entry is a malformed hash, which must not be mistaken for a plain
+         *         password.
+         */
+        static Credential parse(String source) {
+            if (source.startsWith(PBKDF2_PREFIX)) {
+                String[] parts = source.substring(PBKDF2_PREFIX.length()).split(":");
+                if (parts.length != 3)
+                    return null;
+                try {
+                    int iterations = Integer.parseInt(parts[0]);
+                    if (iterations < 1)
+                        return null;
+                    return new Credential(source, Base64.getDecoder().decode(parts[1]),
+                            Base64.getDecoder().decode(parts[2]), iterations);
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+            }
+            byte[] salt = newSalt();
+            return new Credential(null, salt, sha256(salt, source), 0);
+        }
+
+        /**
+         * Checks if an entry of the users database corresponds to this credential, without keeping plain passwords.
+         */
+        boolean isSameEntry(String source) {
+            if (hashedEntry != null)
+                return hashedEntry.equals(source);
+            return !source.startsWith(PBKDF2_PREFIX) && matches(source);
+        }
+
+        boolean matches(String password) {
+            byte[] candidate = iterations == 0 ? sha256(salt, password) : pbkdf2(password, salt, iterations);
+            return MessageDigest.isEqual(hash, candidate);
+        }
+    }
+
+    /**
+     * A successful verification of a user's password. Only a salted SHA-256 digest of the password is kept, so checking
+     * it again is cheap and the password is not kept in memory.
+     */
+    private static class CachedVerification {
+
+        private final Credential credential;
+        private final byte[] salt = newSalt();
+        private final byte[] digest;
+
+        CachedVerification(Credential credential, String password) {
+            this.credential = credential;
+            this.digest = digest(password);
+        }
+
+        byte[] digest(String password) {
+            return sha256(salt, password);
+        }
+    }
+
+    /**
+     * Prints a users database entry with a salted hash of a password, which can replace the user's plain password
+     * entry in <code>users.txt</code>.
+     *
+     * @param args The command-line arguments: the user's address, followed by the password.
+     */
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            throw new RuntimeException("This application must be executed with exactly two arguments, the user's"
+                    + " address and password.");
+        }
+        byte[] salt = newSalt();
+        Base64.Encoder base64 = Base64.getEncoder();
+        System.out.println(args[0] + " " + PBKDF2_PREFIX + DEFAULT_ITERATIONS + ":" + base64.encodeToString(salt) + ":"
+                + base64.encodeToString(pbkdf2(args[1], salt, DEFAULT_ITERATIONS)));
+    }
+}
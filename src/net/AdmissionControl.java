@@ -0,0 +1,147 @@
+package net;
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides whether a new connection is accepted, before any thread or session is set up for it. A connection is
+ * refused if the server already has the maximum number of connections, if its address already has the maximum number
+ * of concurrent connections, or if its address opened connections faster than allowed. The rate of each address is
+ * limited with a token bucket: each connection takes a token, and tokens are added back at a fixed rate, up to the
+ * size of the bucket, so short bursts are allowed while sustained floods are not.
+ */
+public class AdmissionControl {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 1000;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_ADDRESS = 20;
+    public static final int DEFAULT_RATE = 10;
+    public static final int DEFAULT_BURST = 20;
+    /**
+     * Number of tracked addresses above which addresses that no longer need to be tracked are removed.
+     */
+    private static final int PRUNE_THRESHOLD = 10000;
+
+    private final int maxConnections;
+    private final int maxConnectionsPerAddress;
+    private final double rate;
+    private final double burst;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final Map<InetAddress, Client> clients = new ConcurrentHashMap<>();
+
+    /**
+     * Creates the admission policy of a server.
+     *
+     * @param maxConnections           The maximum number of connections open at the same time.
+     * @param maxConnectionsPerAddress The maximum number of connections open at the same time from the same address.
+     * @param rate                     The number of new connections per second allowed from the same address.
+     * @param burst                    The number of new connections allowed at once from the same address.
+     */
+    public AdmissionControl(int maxConnections, int maxConnectionsPerAddress, int rate, int burst) {
+        this.maxConnections = maxConnections;
+        this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+        this.rate = rate;
+        this.burst = Math.max(1, burst);
+    }
+
+    /**
+     * Creates the admission policy of a server from the <code>--max-connections</code>,
+     * <code>--max-connections-per-ip</code>, <code>--connection-rate</code> and <code>--connection-burst</code>
+     * options.
+     *
+     * @param options The command-line options of the server.
+     */
+    public AdmissionControl(ServerOptions options) {
+        this(options.getInt("max-connections", DEFAULT_MAX_CONNECTIONS),
+                options.getInt("max-connections-per-ip", DEFAULT_MAX_CONNECTIONS_PER_ADDRESS),
+                options.getInt("connection-rate", DEFAULT_RATE),
+                options.getInt("connection-burst", DEFAULT_BURST));
+    }
+
+    /**
+     * Checks whether a new connection is accepted and, if so, counts it until <code>release()</code> is called.
+     *
+     * @param address The remote address of the connection.
+     * @return true if the connection is accepted, and false if it must be refused.
+     */
+    public boolean admit(InetAddress address) {
+        if (connections.incrementAndGet() > maxConnections) {
+            connections.decrementAndGet();
+            return false;
+        }
+        if (clients.size() > PRUNE_THRESHOLD)
+            prune();
+        while (true) {
+            Client client = clients.computeIfAbsent(address, a -> new Client());
+            synchronized (client) {
+                if (client.removed)
+                    continue;
+                client.refill(System.nanoTime());
+                if (client.connections < maxConnectionsPerAddress && client.tokens >= 1) {
+                    client.tokens--;
+                    client.connections++;
+                    return true;
+                }
+            }
+            connections.decrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Stops counting a connection accepted by <code>admit()</code>, once it is closed.
+     *
+     * @param address The remote address of the connection.
+     */
+    public void release(InetAddress address) {
+        connections.decrementAndGet();
+        Client client = clients.get(address);
+        if (client == null)
+            return;
+        synchronized (client) {
+            client.connections--;
+            removeIfUnused(address, client);
+        }
+    }
+
+    /**
+     * Removes the addresses that were refused without having any connection open, once their bucket is full again.
+     */
+    private void prune() {
+        for (Map.Entry<InetAddress, Client> entry : clients.entrySet()) {
+            synchronized (entry.getValue()) {
+                removeIfUnused(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private void removeIfUnused(InetAddress address, Client client) {
+        client.refill(System.nanoTime());
+        // An address without connections and with a full bucket has no state worth keeping
+        if (client.connections == 0 && client.tokens >= burst) {
+            client.removed = true;
+            clients.remove(address, client);
+        }
+    }
+
+    public int getConnections() {
+        return connections.get();
+    }
+
+    /**
+     * The connections and token bucket of an address. Guarded by its own monitor, so only connections from the same
+     * address contend.
+     */
+    private class Client {
+
+        private int connections = 0;
+        private double tokens = burst;
+        private long refilled = System.nanoTime();
+        private boolean removed = false;
+
+        void refill(long now) {
+            tokens = Math.min(burst, tokens + (now - refilled) * rate / 1e9);
+            refilled = now;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package net;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executor that runs the handler of each accepted connection. Supported modes are:
+ * <ul>
+ *     <li><code>platform</code>: a new platform thread for every connection (the default);</li>
+ *     <li><code>pool[:N]</code>: a fixed pool of N platform threads, with further connections waiting for a thread
+ *     to become available;</li>
+ *     <li><code>virtual</code>: a new virtual thread for every connection (requires Java 21 or later).</li>
+ * </ul>
+ */
+public class ConnectionExecutors {
+
+    public static final int DEFAULT_POOL_SIZE = 200;
+
+    private ConnectionExecutors() {
+    }
+
+    /**
+     * Creates an executor for the specified mode.
+     *
+     * @param mode The execution mode, as given in the <code>--executor</code> command-line option.
+     * @param name Prefix for the names of the created threads.
+     * @return An Executor that runs each submitted handler on its own thread of the selected kind.
+     * @throws RuntimeException If the mode is not recognized or not supported by the running JVM.
+     */
+    public static Executor create(String mode, String name) {
+        if (mode.equals("platform")) {
+            ThreadFactory factory = newThreadFactory(name);
+            return handler -> factory.newThread(handler).start();
+        }
+        if (mode.equals("pool") || mode.startsWith("pool:")) {
+            int size = mode.equals("pool") ? DEFAULT_POOL_SIZE : Integer.parseInt(mode.substring(5));
+            return Executors.newFixedThreadPool(size, newThreadFactory(name));
+        }
+        if (mode.equals("virtual"))
+            return newVirtualThreadPerTaskExecutor();
+        throw new RuntimeException("Unknown executor mode: " + mode);
+    }
+
+    private static ThreadFactory newThreadFactory(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return handler -> new Thread(handler, name + "-" + count.getAndIncrement());
+    }
+
+    /**
+     * Looks up <code>Executors.newVirtualThreadPerTaskExecutor()</code> at runtime, so the servers still compile and
+     * run on JVMs without virtual threads when this mode is not selected.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException("The virtual executor mode requires Java 21 or later.", e);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package net;
+import java.nio.ByteBuffer;
+
+/**
+ * Byte-level transcoding between the wire format of mail content (as sent after SMTP DATA and in a POP3 RETR response)
+ * and the canonical form in which messages are stored. On the wire, any line starting with "." has an additional "."
+ * prepended, and the content is terminated by a line containing only ".". Stored messages are not dot-stuffed and use
+ * CRLF line terminators.
+ * <p>
+ * Both directions are incremental: content may be split across buffers at any position, and no memory is allocated
+ * while transcoding.
+ */
+public class DotStuffing {
+
+    private DotStuffing() {
+    }
+
+    /**
+     * Converts incoming mail content from the wire format into the stored form: removes dot-stuffing, turns bare LF
+     * line terminators into CRLF and detects the terminating line.
+     */
+    public static class Decoder {
+
+        private static final int LINE_START = 0;
+        private static final int MIDDLE = 1;
+        private static final int AFTER_CR = 2;
+        private static final int AFTER_DOT = 3;
+        private static final int AFTER_DOT_CR = 4;
+
+        private int state = LINE_START;
+
+        /**
+         * Decodes content from an input buffer into an output buffer. Stops when the input is exhausted, the output is
+         * full, or the terminating line is found. In the last case, the input buffer is left positioned immediately
+         * after the terminating line and the decoder is reset for the next message.
+         *
+         * @param in  The wire-format content received from the client.
+         * @param out The buffer where the stored form of the content is written.
+         * @return true if the terminating line was found, and false if more content is expected.
+         */
+        public boolean decode(ByteBuffer in, ByteBuffer out) {
+            while (in.hasRemaining() && out.remaining() >= 2) {
+                byte b = in.get();
+                switch (state) {
+                    case AFTER_DOT:
+                        if (b == '\n') {
+                            state = LINE_START;
+                            return true;
+                        }
+                        if (b == '\r') {
+                            state = AFTER_DOT_CR;
+                            break;
+                        }
+                        // A leading dot followed by other characters is removed
+                        middle(b, out);
+                        break;
+                    case AFTER_DOT_CR:
+                        if (b == '\n') {
+                            state = LINE_START;
+                            return true;
+                        }
+                        afterCR(b, out);
+                        break;
+                    case AFTER_CR:
+                        afterCR(b, out);
+                        break;
+                    case LINE_START:
+                        if (b == '.') {
+                            state = AFTER_DOT;
+                            break;
+                        }
+                        middle(b, out);
+                        break;
+                    default:
+                        middle(b, out);
+                }
+            }
+            return false;
+        }
+
+        private void middle(byte b, ByteBuffer out) {
+            if (b == '\r') {
+                state = AFTER_CR;
+            } else if (b == '\n') {
+                out.put((byte) '\r').put((byte) '\n');
+                state = LINE_START;
+            } else {
+                out.put(b);
+                state = MIDDLE;
+            }
+        }
+
+        private void afterCR(byte b, ByteBuffer out) {
+            if (b == '\n') {
+                out.put((byte) '\r').put((byte) '\n');
+                state = LINE_START;
+            } else {
+                // A CR that does not terminate a line is kept as part of the content
+                out.put((byte) '\r');
+                middle(b, out);
+            }
+        }
+
+        /**
+         * Discards any partially decoded content so the decoder can be reused for a new message.
+         */
+        public void reset() {
+            state = LINE_START;
+        }
+    }
+
+    /**
+     * Converts stored mail content into the wire format: adds dot-stuffing, turns bare LF line terminators into CRLF
+     * and appends the terminating line.
+     */
+    public static class Encoder {
+
+        private boolean lineStart = true;
+        private boolean afterCR = false;
+
+        /**
+         * Encodes content from an input buffer into an output buffer. Stops when the input is exhausted or the output
+         * is full.
+         *
+         * @param in  The stored content of the message.
+         * @param out The buffer where the wire-format content is written.
+         */
+        public void encode(ByteBuffer in, ByteBuffer out) {
+            while (in.hasRemaining() && out.remaining() >= 2) {
+                byte b = in.get();
+                if (lineStart && b == '.')
+                    out.put((byte) '.');
+                else if (b == '\n' && !afterCR)
+                    out.put((byte) '\r');
+                out.put(b);
+                lineStart = b == '\n';
+                afterCR = b == '\r';
+            }
+        }
+
+        /**
+         * Writes the terminating line, preceded by a line terminator if the content did not end with one, and resets
+         * the encoder for the next message.
+         *
+         * @param out The buffer where the terminating line is written. Must have at least 5 bytes available.
+         */
+        public void finish(ByteBuffer out) {
+            if (!lineStart)
+                out.put((byte) '\r').put((byte) '\n');
+            out.put((byte) '.').put((byte) '\r').put((byte) '\n');
+            lineStart = true;
+            afterCR = false;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package net;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous log of server events, such as connections, commands and their replies, and errors. Connection handlers
+ * only fill a pre-allocated record in a ring buffer, without formatting anything or taking a lock; a single background
+ * thread formats the records as <code>key=value</code> lines and writes them to the standard output (or the standard
+ * error, for errors), so console or disk I/O never delays a session. If the ring buffer is full, new records are
+ * dropped (and counted) rather than blocking the session.
+ */
+public class EventLog {
+
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    /**
+     * Number of records in the ring buffer. Must be a power of two.
+     */
+    public static final int CAPACITY = 8192;
+    private static final int MASK = CAPACITY - 1;
+    public static final int NO_CODE = -1;
+
+    private static final Record[] ring = new Record[CAPACITY];
+    private static final AtomicLong claimed = new AtomicLong();
+    private static volatile long consumed = 0;
+    private static volatile boolean waiting = false;
+    private static final AtomicLong sessionIds = new AtomicLong();
+    private static final LongAdder dropped = new LongAdder();
+    private static volatile Level level = Level.INFO;
+    private static final Thread writer;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++)
+            ring[i] = new Record(i - CAPACITY);
+        writer = new Thread(EventLog::writeRecords, "event-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private EventLog() {
+    }
+
+    /**
+     * Sets the lowest level of the records that are logged. Records below it are discarded without being queued.
+     *
+     * @param name The name of the level, in any case (e.g., <code>debug</code>).
+     * @throws IllegalArgumentException If the level is not recognized.
+     */
+    public static void setLevel(String name) {
+        level = Level.valueOf(name.toUpperCase());
+    }
+
+    public static boolean isEnabled(Level recordLevel) {
+        return recordLevel.compareTo(level) >= 0;
+    }
+
+    /**
+     * Returns a new identifier for a session, used to relate the records of the same connection.
+     */
+    public static long newSessionId() {
+        return sessionIds.incrementAndGet();
+    }
+
+    /**
+     * Returns the number of records dropped because the ring buffer was full.
+     */
+    public static long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Logs a server-wide event, not related to any session.
+     */
+    public static void info(String protocol, String event, Object detail) {
+        log(Level.INFO, protocol, 0, null, event, detail, NO_CODE, null);
+    }
+
+    /**
+     * Logs an error, with the stack trace of the exception that caused it.
+     */
+    public static void error(String protocol, long session, Object remote, String event, Throwable error) {
+        log(Level.ERROR, protocol, session, remote, event, null, NO_CODE, error);
+    }
+
+    /**
+     * Queues a record to be logged. The values are only converted to text by the background thread, so they must not
+     * be modified afterwards.
+     *
+     * @param recordLevel The level of the record.
+     * @param protocol    The protocol of the server (<code>smtp</code> or <code>pop3</code>), or the shared component
+     *                    the event comes from (<code>users</code> or <code>mailbox</code>).
+     * @param session     The identifier of the session (see <code>newSessionId()</code>), or 0 for server events.
+     * @param remote      The remote address of the connection, or null.
+     * @param event       The kind of event (e.g., <code>command</code>).
+     * @param detail      Additional information, such as the name of the command, or null.
+     * @param code        The reply code, or <code>NO_CODE</code>.
+     * @param error       The exception that caused the event, or null.
+     */
+    public static void log(Level recordLevel, String protocol, long session, Object remote, String event, Object detail,
+                           int code, Throwable error) {
+        if (!isEnabled(recordLevel))
+            return;
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= CAPACITY) {
+                dropped.increment();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        Record record = ring[(int) sequence & MASK];
+        record.time = System.currentTimeMillis();
+        record.level = recordLevel;
+        record.protocol = protocol;
+        record.session = session;
+        record.remote = remote;
+        record.event = event;
+        record.detail = detail;
+        record.code = code;
+        record.error = error;
+        record.published = sequence;
+        if (waiting)
+            LockSupport.unpark(writer);
+    }
+
+    /**
+     * Formats and writes the published records, in order. Runs in a background thread for the lifetime of the server.
+     */
+    private static void writeRecords() {
+        StringBuilder out = new StringBuilder();
+        StringBuilder err = new StringBuilder();
+        while (true) {
+            long sequence = consumed;
+            Record record = ring[(int) sequence & MASK];
+            if (record.published != sequence) {
+                flush(out, err);
+                waiting = true;
+                if (record.published != sequence)
+                    LockSupport.parkNanos(100_000_000L);
+                waiting = false;
+                continue;
+            }
+            format(record, record.level.compareTo(Level.WARN) >= 0 ? err : out);
+            record.remote = null;
+            record.detail = null;
+            record.error = null;
+            consumed = sequence + 1;
+            if (out.length() + err.length() >= 65536)
+                flush(out, err);
+        }
+    }
+
+    private static void format(Record record, StringBuilder out) {
+        out.append(Instant.ofEpochMilli(record.time)).append(" level=").append(record.level)
+                .append(" proto=").append(record.protocol);
+        if (record.session != 0)
+            out.append(" session=").append(record.session);
+        if (record.remote != null)
+            out.append(" remote=").append(record.remote);
+        out.append(" event=").append(record.event);
+        if (record.detail != null)
+            out.append(" detail=\"").append(String.valueOf(record.detail).replace("\"", "\\\"")).append('"');
+        if (record.code != NO_CODE)
+            out.append(" code=").append(record.code);
+        out.append('\n');
+        if (record.error != null) {
+            StringWriter trace = new StringWriter();
+            record.error.printStackTrace(new PrintWriter(trace));
+            out.append(trace);
+        }
+    }
+
+    private static void flush(StringBuilder out, StringBuilder err) {
+        if (out.length() > 0) {
+            System.out.print(out);
+            System.out.flush();
+            out.setLength(0);
+        }
+        if (err.length() > 0) {
+            System.err.print(err);
+            System.err.flush();
+            err.setLength(0);
+        }
+    }
+
+    /**
+     * A slot of the ring buffer. <code>published</code> is written last, so the other fields are visible to the
+     * background thread once it holds the sequence number of the record.
+     */
+    private static class Record {
+
+        private volatile long published;
+        private long time;
+        private Level level;
+        private String protocol;
+        private long session;
+        private Object remote;
+        private String event;
+        private Object detail;
+        private int code;
+        private Throwable error;
+
+        Record(long published) {
+            this.published = published;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package net;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of non-negative values (such as latencies or sizes) in buckets whose upper bounds are successive powers
+ * of two. Recording a value only increments two <code>LongAdder</code> counters, so it never blocks and scales with the
+ * number of threads recording concurrently.
+ */
+public class Histogram {
+
+    private final LongAdder[] buckets;
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * Creates an empty histogram.
+     *
+     * @param bucketCount The number of buckets. Bucket <code>i</code> counts the values up to <code>2^i</code>, and
+     *                    the last bucket also counts any larger value.
+     */
+    public Histogram(int bucketCount) {
+        buckets = new LongAdder[bucketCount];
+        for (int i = 0; i < bucketCount; i++)
+            buckets[i] = new LongAdder();
+    }
+
+    public void record(long value) {
+        int bucket = value <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(value - 1);
+        buckets[Math.min(bucket, buckets.length - 1)].increment();
+        sum.add(value);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : buckets)
+            count += bucket.sum();
+        return count;
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public double getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : (double) getSum() / count;
+    }
+
+    /**
+     * Appends the histogram in the Prometheus text format, with cumulative buckets.
+     *
+     * @param out    The buffer to which the lines are appended.
+     * @param name   The name of the metric.
+     * @param labels The labels of the metric (e.g., <code>command="RETR"</code>), or an empty string.
+     * @param scale  The factor by which values are divided to convert them to the unit of the metric.
+     */
+    public void format(StringBuilder out, String name, String labels, double scale) {
+        String separator = labels.isEmpty() ? "" : ",";
+        long cumulative = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            cumulative += buckets[i].sum();
+            String bound = i == buckets.length - 1 ? "+Inf" : Double.toString((1L << i) / scale);
+            out.append(name).append("_bucket{").append(labels).append(separator)
+                    .append("le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+        }
+        String suffix = labels.isEmpty() ? " " : "{" + labels + "} ";
+        out.append(name).append("_sum").append(suffix).append(getSum() / scale).append('\n');
+        out.append(name).append("_count").append(suffix).append(cumulative).append('\n');
+    }
+}
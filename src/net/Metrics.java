@@ -0,0 +1,211 @@
+package net;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpServer;
+import mailbox.DeliveryQueue;
+import mailbox.DeliveryQueueMXBean;
+
+/**
+ * Metrics of the SMTP or POP3 server: sessions, bytes received and sent, the number of messages and their sizes, and
+ * the latency of each command. All values are kept in <code>LongAdder</code> counters and <code>Histogram</code>s, so
+ * recording them from the connection handlers never blocks. The metrics are exported through JMX and, optionally, as a
+ * text page in the Prometheus exposition format served over HTTP on the loopback interface (<code>/metrics</code>).
+ */
+public class Metrics implements MetricsMXBean {
+
+    public static final Metrics SMTP = new Metrics("smtp", Metrics::formatDeliveryQueue,
+            "HELO", "EHLO", "MAIL", "RCPT", "DATA", "RSET", "VRFY", "NOOP", "QUIT", "BDAT");
+    public static final Metrics POP3 = new Metrics("pop3", out -> {},
+            "USER", "PASS", "STAT", "LIST", "RETR", "TOP", "UIDL", "DELE", "RSET", "CAPA", "NOOP", "QUIT");
+
+    /**
+     * Name under which unrecognized commands are counted, so that clients cannot create new metrics.
+     */
+    private static final String OTHER_COMMAND = "OTHER";
+    private static final int LATENCY_BUCKETS = 28;
+    private static final int SIZE_BUCKETS = 32;
+
+    private final String protocol;
+    private final Consumer<StringBuilder> extension;
+    private final Map<String, Histogram> commandLatencies = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    private final LongAdder activeSessions = new LongAdder();
+    private final LongAdder sessions = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final Histogram messageSizes = new Histogram(SIZE_BUCKETS);
+
+    /**
+     * Creates the metrics of a server. The map of commands is never modified afterwards, so it is read without
+     * synchronization.
+     */
+    private Metrics(String protocol, Consumer<StringBuilder> extension, String... commands) {
+        this.protocol = protocol;
+        this.extension = extension;
+        for (String command : commands)
+            commandLatencies.put(command, new Histogram(LATENCY_BUCKETS));
+        commandLatencies.put(OTHER_COMMAND, new Histogram(LATENCY_BUCKETS));
+    }
+
+    public void sessionOpened() {
+        activeSessions.increment();
+        sessions.increment();
+    }
+
+    public void sessionClosed() {
+        activeSessions.decrement();
+    }
+
+    public void addBytesIn(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    public void addBytesOut(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    /**
+     * Records the size of a message received (SMTP) or retrieved (POP3).
+     *
+     * @param size The size of the message, in bytes.
+     */
+    public void recordMessage(long size) {
+        messageSizes.record(size);
+    }
+
+    /**
+     * Records the time spent processing a command.
+     *
+     * @param command The name of the command, in any case, or null. Unrecognized commands are counted together.
+     * @param nanos   The processing time, in nanoseconds.
+     */
+    public void recordCommand(String command, long nanos) {
+        Histogram latencies = command != null ? commandLatencies.get(command) : null;
+        if (latencies == null)
+            latencies = commandLatencies.get(OTHER_COMMAND);
+        latencies.record(nanos / 1000);
+    }
+
+    @Override
+    public long getActiveSessions() {
+        return activeSessions.sum();
+    }
+
+    @Override
+    public long getSessionCount() {
+        return sessions.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public Map<String, Long> getCommandCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<String, Histogram> entry : commandLatencies.entrySet())
+            counts.put(entry.getKey(), entry.getValue().getCount());
+        return counts;
+    }
+
+    @Override
+    public Map<String, Double> getCommandMeanLatencyMillis() {
+        Map<String, Double> latencies = new TreeMap<>();
+        for (Map.Entry<String, Histogram> entry : commandLatencies.entrySet())
+            latencies.put(entry.getKey(), entry.getValue().getMean() / 1000);
+        return latencies;
+    }
+
+    @Override
+    public long getMessageCount() {
+        return messageSizes.getCount();
+    }
+
+    @Override
+    public double getMeanMessageSize() {
+        return messageSizes.getMean();
+    }
+
+    /**
+     * Returns all metrics in the Prometheus text exposition format.
+     */
+    public String format() {
+        StringBuilder out = new StringBuilder();
+        formatValue(out, "active_sessions", "gauge", activeSessions.sum());
+        formatValue(out, "sessions_total", "counter", sessions.sum());
+        formatValue(out, "bytes_in_total", "counter", bytesIn.sum());
+        formatValue(out, "bytes_out_total", "counter", bytesOut.sum());
+        String name = protocol + "_command_duration_seconds";
+        out.append("# TYPE ").append(name).append(" histogram\n");
+        for (Map.Entry<String, Histogram> entry : commandLatencies.entrySet())
+            entry.getValue().format(out, name, "command=\"" + entry.getKey() + "\"", 1e6);
+        name = protocol + "_message_size_bytes";
+        out.append("# TYPE ").append(name).append(" histogram\n");
+        messageSizes.format(out, name, "", 1);
+        extension.accept(out);
+        return out.toString();
+    }
+
+    private void formatValue(StringBuilder out, String name, String type, Number value) {
+        out.append("# TYPE ").append(protocol).append('_').append(name).append(' ').append(type).append('\n');
+        out.append(protocol).append('_').append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void formatDeliveryQueue(StringBuilder out) {
+        DeliveryQueueMXBean queue = DeliveryQueue.getStatistics();
+        SMTP.formatValue(out, "delivery_queue_depth", "gauge", queue.getQueueDepth());
+        SMTP.formatValue(out, "delivery_queue_capacity", "gauge", queue.getCapacity());
+        SMTP.formatValue(out, "delivery_enqueued_total", "counter", queue.getEnqueuedCount());
+        SMTP.formatValue(out, "delivery_delivered_total", "counter", queue.getDeliveredCount());
+        SMTP.formatValue(out, "delivery_retries_total", "counter", queue.getRetryCount());
+        SMTP.formatValue(out, "delivery_rejected_total", "counter", queue.getRejectedCount());
+        SMTP.formatValue(out, "delivery_failed_total", "counter", queue.getFailedCount());
+        SMTP.formatValue(out, "delivery_latency_mean_seconds", "gauge", queue.getAverageLatencyMillis() / 1000);
+        SMTP.formatValue(out, "delivery_latency_max_seconds", "gauge", queue.getMaxLatencyMillis() / 1000.0);
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server and, if a port is given, serves them over HTTP on the
+     * loopback interface.
+     *
+     * @param port The port of the HTTP endpoint, or 0 to only export the metrics through JMX.
+     * @throws IOException If the HTTP endpoint cannot be started.
+     */
+    public void export(int port) throws IOException {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("net:type=Metrics,protocol=" + protocol));
+        } catch (JMException e) {
+            EventLog.error(protocol, 0, null, "jmx-error", e);
+        }
+        if (port <= 0)
+            return;
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = format().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        EventLog.info(protocol, "metrics", "http://localhost:" + port + "/metrics");
+    }
+}
@@ -0,0 +1,34 @@
+package net;
+import java.util.Map;
+
+/**
+ * Management interface of the metrics of a server, registered with the platform MBean server as
+ * <code>net:type=Metrics,protocol=...</code>.
+ */
+public interface MetricsMXBean {
+
+    long getActiveSessions();
+
+    long getSessionCount();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    /**
+     * Returns the number of commands processed, by command name.
+     */
+    Map<String, Long> getCommandCounts();
+
+    /**
+     * Returns the average time spent processing each command, by command name, in milliseconds.
+     */
+    Map<String, Double> getCommandMeanLatencyMillis();
+
+    /**
+     * Returns the number of messages received (SMTP) or retrieved (POP3).
+     */
+    long getMessageCount();
+
+    double getMeanMessageSize();
+}
@@ -1,18 +1,27 @@
 package net;
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.List;
-
-import mailbox.MailMessage;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+
 import mailbox.Mailbox;
+import mailbox.Mailbox.InvalidUserException;
 import mailbox.Mailbox.MailboxNotAuthenticatedException;
+import mailbox.Mailbox.MaildropLockedException;
+import mailbox.MessageContent;
+import mailbox.MessageMetadata;
 
 public class MyPOPServer extends Thread {
 
@@ -20,10 +29,79 @@ public class MyPOPServer extends Thread {
     private final BufferedReader socketIn;
     private final PrintWriter socketOut;
 
+    private final long sessionId = EventLog.newSessionId();
     String user;
     Mailbox mb;
-    List<Integer> msgIndex = new ArrayList<Integer>();
-    List<Integer> deletedmsg = new ArrayList<Integer>();
+    private boolean userAccepted = false;
+    private State state = State.AUTHORIZATION;
+
+    /**
+     * Capabilities listed in the response to CAPA (RFC 2449). Responses, including multi-line ones, are collected in an
+     * output buffer and only sent once there are no more pipelined commands to process.
+     */
+    private static final String[] CAPABILITIES = {"USER", "PIPELINING", "UIDL", "TOP"};
+    /**
+     * Commands, matched in any case.
+     */
+    private static final Map<String, Verb> VERBS = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    /**
+     * Dispatch table: the handler of each command, and the states of the session in which it is accepted. Commands
+     * received in any other state are rejected before their arguments are even looked at.
+     */
+    private static final Map<Verb, Handler> HANDLERS = new EnumMap<>(Verb.class);
+    private static final Map<Verb, Set<State>> ACCEPTED_STATES = new EnumMap<>(Verb.class);
+
+    static {
+        Set<State> authorization = EnumSet.of(State.AUTHORIZATION);
+        Set<State> transaction = EnumSet.of(State.TRANSACTION);
+        Set<State> any = EnumSet.allOf(State.class);
+        on(Verb.USER, authorization, MyPOPServer::user);
+        on(Verb.PASS, authorization, MyPOPServer::pass);
+        on(Verb.STAT, transaction, MyPOPServer::stat);
+        on(Verb.LIST, transaction, MyPOPServer::list);
+        on(Verb.RETR, transaction, MyPOPServer::retrieve);
+        on(Verb.TOP, transaction, MyPOPServer::top);
+        on(Verb.UIDL, transaction, MyPOPServer::uniqueIdListing);
+        on(Verb.DELE, transaction, MyPOPServer::delete);
+        on(Verb.RSET, transaction, MyPOPServer::reset);
+        on(Verb.CAPA, any, MyPOPServer::capabilities);
+        on(Verb.NOOP, any, MyPOPServer::noop);
+        on(Verb.QUIT, any, MyPOPServer::quit);
+    }
+
+    /**
+     * States of a session (RFC 1939, section 3): until the client is authenticated, while it accesses the maildrop,
+     * and once the messages tagged for deletion are deleted after QUIT.
+     */
+    private enum State { AUTHORIZATION, TRANSACTION, UPDATE }
+
+    private enum Verb { USER, PASS, STAT, LIST, RETR, TOP, UIDL, DELE, RSET, CAPA, NOOP, QUIT }
+
+    /**
+     * Processes a command, writing its response to the output buffer.
+     */
+    private interface Handler {
+
+        /**
+         * @param session The session of the connection.
+         * @param cmd     The words of the command line, the first one being the command.
+         * @return true if the response is positive (<code>+OK</code>), and false otherwise.
+         * @throws IOException If there is an error sending the content of a message.
+         */
+        boolean handle(MyPOPServer session, String[] cmd) throws IOException;
+    }
+
+    /**
+     * Default inactivity autologout timer, in seconds. RFC 1939, section 3, requires at least 10 minutes.
+     */
+    public static final int DEFAULT_IDLE_TIMEOUT = 600;
+    private static volatile int idleTimeout = DEFAULT_IDLE_TIMEOUT * 1000;
+    private static final int OUTPUT_BUFFER_SIZE = 65536;
+    private static final int RETR_BUFFER_SIZE = 8192;
+    private final DotStuffing.Encoder retrEncoder = new DotStuffing.Encoder();
+    private ByteBuffer retrIn;
+    private ByteBuffer retrOut;
+    private final AdmissionControl admission;
 
     /**
      * Initializes an object responsible for a connection to an individual client.
@@ -32,240 +110,433 @@ public class MyPOPServer extends Thread {
      * @throws IOException If there is an error attempting to retrieve the socket's information.
      */
     public MyPOPServer(Socket socket) throws IOException {
+        this(socket, null);
+    }
+
+    /**
+     * Initializes an object responsible for a connection to an individual client, which was accepted by an admission
+     * policy.
+     *
+     * @param socket    The socket associated to the accepted connection.
+     * @param admission The admission policy that accepted the connection, which is released once the connection is
+     *                  closed, or null.
+     * @throws IOException If there is an error attempting to retrieve the socket's information.
+     */
+    public MyPOPServer(Socket socket, AdmissionControl admission) throws IOException {
         this.socket = socket;
+        this.admission = admission;
         this.socketIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        this.socketOut = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
+        this.socketOut = new PrintWriter(new OutputStreamWriter(new BufferedOutputStream(
+                new CountingOutputStream(socket.getOutputStream()), OUTPUT_BUFFER_SIZE)));
     }
 
     /**
      * Handles the communication with an individual client. Must send the initial welcome message, and then repeatedly
      * read requests, process the individual operation, and return a response, according to the POP3 protocol. Empty
      * request lines should be ignored. Only returns if the connection is terminated or if the QUIT command is issued.
-     * Must close the socket connection before returning.
+     * Must close the socket connection before returning. If the client sends nothing within the autologout timer, the
+     * connection is closed without a response and without deleting any message (RFC 1939, section 3). The user's
+     * maildrop is locked from a successful PASS until the session ends, so other sessions for the same user are refused
+     * in the meantime. Each command is parsed once and dispatched through a table by the state of the session; unknown
+     * commands, and commands not allowed in the current state, get a negative response.
      */
     @Override
     public void run() {
         try (this.socket) {
 
+            Metrics.POP3.sessionOpened();
+            EventLog.log(EventLog.Level.INFO, "pop3", sessionId, socket.getRemoteSocketAddress(), "connect", null,
+                    EventLog.NO_CODE, null);
             socketOut.write("+OK POP3 server ready <" + socket.getLocalAddress() + ">\r\n");
             socketOut.flush();
 
-            int state = 0;
-            boolean auth = false;
-
-            while(true) {
-                String[] cmd = socketIn.readLine().split(" ");
-                    switch(cmd[0].toUpperCase()) {
-                        case "USER":
-                            if(state != 0 || cmd.length != 2) {
-                                socketOut.write("-ERR NONO\r\n");
-                                socketOut.flush();
-                                break;
-                            }
-                            if(Mailbox.isValidUser(cmd[1])) {
-                                auth = true;
-                                user = cmd[1];
-                                socketOut.write("+OK Hi bossman\r\n");
-                                socketOut.flush();
-                                break;
-                            }
-                            else {
-                                socketOut.write("-ERR I don't know you\r\n");
-                                socketOut.flush();
-                                auth = false;
-                                break;
-                            }
-                        case "PASS":
-                            if(cmd.length == 1) {
-                                socketOut.write("-ERR Where's the password?\r\n");
-                                socketOut.flush();
-                                break;
-                            }
-                            if(state == 0 && auth) {
-                                mb = new Mailbox(user);
-                                String pass = getPass(cmd);
-                                try{
-                                    mb.loadMessages(pass);
-                                    int i = 1;
-                                    for(MailMessage m : mb) {
-                                        msgIndex.add(i);
-                                        i++;
-                                    }
-                                    socketOut.write("+OK finally, your in\r\n");
-                                    socketOut.flush();
-                                    state = 1;
-                                    break;
-                                }
-                                catch(MailboxNotAuthenticatedException e) {
-                                    socketOut.write("-ERR Are you trying to break in?\r\n");
-                                    socketOut.flush();
-                                    break;
-                                }
-                            }
-                            else {
-                                socketOut.write("-ERR Who are you?\r\n");
-                                socketOut.flush();
-                                break;
-                            }
-                        case "STAT":
-                            if(state != 1) {
-                                socketOut.write("-ERR NONO BAD\r\n");
-                                socketOut.flush();
-                                break;
-                            }
-                            socketOut.write("+OK " + mb.size(false) + 
-                            " " + mb.getTotalUndeletedFileSize(false) + "\r\n");
-                            socketOut.flush();
-                            break;
-                        case "LIST":
-                            if(state != 1) {
-                                socketOut.write("-ERR NONO\r\n");
-                                socketOut.flush();
-                                break;
-                            }
-                            if(cmd.length > 1) {
-                                if(Integer.parseInt(cmd[1]) < 1 || Integer.parseInt(cmd[1]) > mb.size(true) || mb.getMailMessage(Integer.parseInt(cmd[1])).isDeleted()) {
-                                    socketOut.write("-ERR No such message\r\n");
-                                    socketOut.flush();
-                                    break;
-                                }
-                                else {
-                                    socketOut.write("+OK " + 
-                                    cmd[1] + " " + 
-                                    (int)mb.getMailMessage(Integer.parseInt(cmd[1])).getFileSize() + "\r\n");
-                                    socketOut.flush();
-                                    break;
-                                }
-                            }
-                            else if(cmd.length == 1) {
-                                socketOut.write("+OK " + mb.size(false) + " messages\r\n");
-                                socketOut.flush();
-                                if(mb.size(false) == 0) {
-                                    socketOut.write(".\r\n");
-                                    socketOut.flush();
-                                    break;
-                                }
-                                else {
-                                    int i = 0;
-                                    for(MailMessage m : mb) {
-                                        if(!m.isDeleted()) {
-                                            socketOut.write(msgIndex.get(i)+ " " + m.getFileSize() + "\r\n");
-                                            socketOut.flush();
-                                            i+=1;
-                                        }
-                                    }
-                                    socketOut.write(".\r\n");
-                                    socketOut.flush();
-                                    break;
-                                }
-                            }
-                            else {
-                                socketOut.write("-ERR Too many arguments\r\n");
-                                socketOut.flush();
-                                break;
-                            }
-                        case "RETR":
-                            if(state != 1) {
-                                socketOut.write("-ERR Bad sequence of commands\r\n");
-                                socketOut.flush();
-                                break;
-                            }
-                            else if(cmd.length == 1 || Integer.parseInt(cmd[1]) < 1 || Integer.parseInt(cmd[1]) > mb.size(false)) {
-                                socketOut.write("-ERR No such message\r\n");
-                                socketOut.flush();
-                                break;
-                            }
-                            else if(mb.getMailMessage(Integer.parseInt(cmd[1])).isDeleted()) {
-                                socketOut.write("-ERR No such message\r\n");
-                                socketOut.flush();
-                                break;
-                            }
-                            else if(cmd.length > 2) {
-                                socketOut.write("-ERR Choose one message\r\n");
-                                socketOut.flush();
-                                break;
-                            }
-                            else {
-                                String message = new String(Files.readAllBytes(Paths.get(mb.getMailMessage(Integer.parseInt(cmd[1])).getFile().toString())));
-                                
-                                socketOut.write("+OK " + 
-                                    cmd[1] + " " + 
-                                    (int)mb.getMailMessage(Integer.parseInt(cmd[1])).getFileSize() + "\r\n");
-                                socketOut.flush();
-
-                                socketOut.write(message + ".\r\n");
-                                socketOut.flush();
-                                break;
-                            }
-                        case "DELE":
-                            if(state != 1) {
-                                socketOut.write("-ERR Bad sequence of commands\r\n");
-                                socketOut.flush();
-                                break;
-                            }
-                            if(cmd.length < 2) { 
-                                socketOut.write("-ERR No index given\r\n");
-                                socketOut.flush();
-                                break;
-                            }
-                            else if(cmd.length == 2) {
-                                if(Integer.parseInt(cmd[1]) < 1 || Integer.parseInt(cmd[1]) > mb.size(true)) {
-                                    socketOut.write("-ERR Bad index\r\n");
-                                    socketOut.flush();
-                                    break;
-                                }
-                                else if(mb.getMailMessage(Integer.parseInt(cmd[1])).isDeleted()) {
-                                    socketOut.write("-ERR Message already deleted\r\n");
-                                    socketOut.flush();
-                                    break;
-                                }
-                                else {
-                                    mb.getMailMessage(Integer.parseInt(cmd[1])).tagForDeletion();
-                                    deletedmsg.add(msgIndex.remove(msgIndex.indexOf(Integer.parseInt(cmd[1]))));
-                                    socketOut.write("+OK Deleted\r\n");
-                                    socketOut.flush();
-                                    break;
-                                }
-                            }
-                            else {
-                                socketOut.write("-ERR Choose one index\r\n");
-                                socketOut.flush();
-                                break;
-                            }
-                        case "RSET":
-                            if(state != 1) {
-                                socketOut.write("-ERR Bad sequence of commands\r\n");
-                                socketOut.flush();
-                                break;
-                            }
-                            for(MailMessage m : mb) {
-                                m.undelete();
-                            }
-                            msgIndex.addAll(deletedmsg);
-                            Collections.sort(msgIndex);
-                            socketOut.write("+OK Messages undeleted\r\n");
-                            socketOut.flush();
-                            break;
-                        case "NOOP":
-                                socketOut.write("+OK YAYA\r\n");
-                                socketOut.flush();
-                                break;
-                        case "QUIT":
-                            if(mb != null) {
-                                mb.deleteMessagesTaggedForDeletion();   
-                            }   
-                            socketOut.write("+OK See you next time\r\n");
-                            socketOut.flush();
-                            socketOut.close();
-                            socketIn.close();
-                            socket.close();
-                            break;
+            socket.setSoTimeout(idleTimeout);
+
+            while(!socket.isClosed()) {
+                // Replies are only sent once all pipelined commands received so far are processed
+                if(!socketIn.ready()) {
+                    socketOut.flush();
+                }
+                String line;
+                try {
+                    line = socketIn.readLine();
+                }
+                catch(SocketTimeoutException e) {
+                    EventLog.log(EventLog.Level.INFO, "pop3", sessionId, socket.getRemoteSocketAddress(), "timeout",
+                            null, EventLog.NO_CODE, null);
+                    break;
+                }
+                if(line == null) {
+                    break;
+                }
+                Metrics.POP3.addBytesIn(line.length() + 2);
+                if(line.isBlank()) {
+                    continue;
+                }
+                long start = System.nanoTime();
+                State previousState = state;
+                String[] cmd = line.split(" ");
+                Verb verb = VERBS.get(cmd[0]);
+                boolean ok;
+                if(verb == null) {
+                    socketOut.write("-ERR Unknown command\r\n");
+                    ok = false;
+                }
+                else if(!ACCEPTED_STATES.get(verb).contains(state)) {
+                    socketOut.write("-ERR Bad sequence of commands\r\n");
+                    ok = false;
+                }
+                else {
+                    ok = HANDLERS.get(verb).handle(this, cmd);
+                }
+                Metrics.POP3.recordCommand(verb != null ? verb.name() : null, System.nanoTime() - start);
+                if(EventLog.isEnabled(EventLog.Level.DEBUG)) {
+                    EventLog.log(EventLog.Level.DEBUG, "pop3", sessionId, socket.getRemoteSocketAddress(), "command",
+                            cmd[0] + (ok ? " +OK" : " -ERR"), EventLog.NO_CODE, null);
+                    if(state != previousState) {
+                        EventLog.log(EventLog.Level.DEBUG, "pop3", sessionId, socket.getRemoteSocketAddress(), "state",
+                                state.name(), EventLog.NO_CODE, null);
                     }
+                }
             }
 
         } catch (IOException e) {
-            System.err.println("Error in client's connection handling.");
-            e.printStackTrace();
+            EventLog.error("pop3", sessionId, socket.getRemoteSocketAddress(), "connection-error", e);
+        } finally {
+            Metrics.POP3.sessionClosed();
+            EventLog.log(EventLog.Level.INFO, "pop3", sessionId, socket.getRemoteSocketAddress(), "disconnect", null,
+                    EventLog.NO_CODE, null);
+            if(mb != null) {
+                mb.unlock();
+            }
+            if(admission != null) {
+                admission.release(socket.getInetAddress());
+            }
+        }
+    }
+
+    private static void on(Verb verb, Set<State> states, Handler handler) {
+        VERBS.put(verb.name(), verb);
+        HANDLERS.put(verb, handler);
+        ACCEPTED_STATES.put(verb, states);
+    }
+
+    private boolean user(String[] cmd) {
+        if (cmd.length != 2) {
+            socketOut.write("-ERR NONO\r\n");
+            return false;
+        }
+        userAccepted = Mailbox.isValidUser(cmd[1]);
+        if (!userAccepted) {
+            socketOut.write("-ERR I don't know you\r\n");
+            return false;
+        }
+        user = cmd[1];
+        socketOut.write("+OK Hi bossman\r\n");
+        return true;
+    }
+
+    private boolean pass(String[] cmd) {
+        if (cmd.length == 1) {
+            socketOut.write("-ERR Where's the password?\r\n");
+            return false;
+        }
+        if (!userAccepted) {
+            socketOut.write("-ERR Who are you?\r\n");
+            return false;
+        }
+        try {
+            mb = new Mailbox(user);
+            mb.loadMessages(getPass(cmd));
+        } catch (InvalidUserException e) {
+            // Removed by a reload of the users database since USER
+            userAccepted = false;
+            socketOut.write("-ERR I don't know you\r\n");
+            return false;
+        } catch (MailboxNotAuthenticatedException e) {
+            socketOut.write("-ERR Are you trying to break in?\r\n");
+            return false;
+        } catch (MaildropLockedException e) {
+            socketOut.write("-ERR Maildrop already locked\r\n");
+            return false;
+        }
+        state = State.TRANSACTION;
+        socketOut.write("+OK finally, your in\r\n");
+        return true;
+    }
+
+    private boolean stat(String[] cmd) {
+        socketOut.write("+OK " + mb.size(false) + " " + mb.getTotalUndeletedFileSize(false) + "\r\n");
+        return true;
+    }
+
+    private boolean list(String[] cmd) {
+        if (cmd.length == 2) {
+            int index = parseMessageNumber(cmd[1]);
+            if (index == 0 || mb.isDeleted(index)) {
+                socketOut.write("-ERR No such message\r\n");
+                return false;
+            }
+            socketOut.write("+OK " + index + " " + mb.getFileSize(index) + "\r\n");
+            return true;
+        }
+        if (cmd.length > 2) {
+            socketOut.write("-ERR Too many arguments\r\n");
+            return false;
+        }
+        socketOut.write("+OK " + mb.size(false) + " messages\r\n");
+        for (int i = 1; i <= mb.size(true); i++) {
+            if (!mb.isDeleted(i))
+                socketOut.write(i + " " + mb.getFileSize(i) + "\r\n");
+        }
+        socketOut.write(".\r\n");
+        return true;
+    }
+
+    private boolean retrieve(String[] cmd) throws IOException {
+        if (cmd.length > 2) {
+            socketOut.write("-ERR Choose one message\r\n");
+            return false;
+        }
+        int index = cmd.length == 2 ? parseMessageNumber(cmd[1]) : 0;
+        if (index == 0 || mb.isDeleted(index)) {
+            socketOut.write("-ERR No such message\r\n");
+            return false;
+        }
+        long size = mb.getFileSize(index);
+        socketOut.write("+OK " + index + " " + size + "\r\n");
+        sendMessageContent(index, -1);
+        Metrics.POP3.recordMessage(size);
+        return true;
+    }
+
+    private boolean top(String[] cmd) throws IOException {
+        long lines = cmd.length == 3 ? parseNumber(cmd[2]) : -1;
+        if (lines < 0) {
+            socketOut.write("-ERR Usage: TOP message lines\r\n");
+            return false;
+        }
+        int index = parseMessageNumber(cmd[1]);
+        if (index == 0 || mb.isDeleted(index)) {
+            socketOut.write("-ERR No such message\r\n");
+            return false;
+        }
+        socketOut.write("+OK Top of message follows\r\n");
+        sendMessageContent(index, lines);
+        return true;
+    }
+
+    private boolean uniqueIdListing(String[] cmd) throws IOException {
+        if (cmd.length == 2) {
+            int index = parseMessageNumber(cmd[1]);
+            if (index == 0 || mb.isDeleted(index)) {
+                socketOut.write("-ERR No such message\r\n");
+                return false;
+            }
+            socketOut.write("+OK " + index + " " + mb.getMetadata(index).getUniqueId() + "\r\n");
+            return true;
+        }
+        if (cmd.length > 2) {
+            socketOut.write("-ERR Choose one message\r\n");
+            return false;
+        }
+        socketOut.write("+OK Unique-ID listing follows\r\n");
+        for (int i = 1; i <= mb.size(true); i++) {
+            if (!mb.isDeleted(i))
+                socketOut.write(i + " " + mb.getMetadata(i).getUniqueId() + "\r\n");
+        }
+        socketOut.write(".\r\n");
+        return true;
+    }
+
+    private boolean delete(String[] cmd) {
+        if (cmd.length != 2) {
+            socketOut.write(cmd.length < 2 ? "-ERR No index given\r\n" : "-ERR Choose one index\r\n");
+            return false;
+        }
+        int index = parseMessageNumber(cmd[1]);
+        if (index == 0) {
+            socketOut.write("-ERR Bad index\r\n");
+            return false;
+        }
+        if (mb.isDeleted(index)) {
+            socketOut.write("-ERR Message already deleted\r\n");
+            return false;
+        }
+        mb.tagForDeletion(index);
+        socketOut.write("+OK Deleted\r\n");
+        return true;
+    }
+
+    private boolean reset(String[] cmd) {
+        mb.undeleteAll();
+        socketOut.write("+OK Messages undeleted\r\n");
+        return true;
+    }
+
+    private boolean capabilities(String[] cmd) {
+        socketOut.write("+OK Capability list follows\r\n");
+        for (String capability : CAPABILITIES)
+            socketOut.write(capability + "\r\n");
+        socketOut.write(".\r\n");
+        return true;
+    }
+
+    private boolean noop(String[] cmd) {
+        socketOut.write("+OK YAYA\r\n");
+        return true;
+    }
+
+    /**
+     * Ends the session. If the client was authenticated, the session enters the UPDATE state, in which the messages
+     * tagged for deletion are deleted and the maildrop is unlocked.
+     */
+    private boolean quit(String[] cmd) throws IOException {
+        if (state == State.TRANSACTION) {
+            state = State.UPDATE;
+            mb.deleteMessagesTaggedForDeletion();
+            mb.unlock();
+        }
+        socketOut.write("+OK See you next time\r\n");
+        socketOut.close();
+        socketIn.close();
+        socket.close();
+        return true;
+    }
+
+    /**
+     * Parses the number of a message in the maildrop, which may be tagged for deletion.
+     *
+     * @return The message number, or 0 if the argument is not the number of a message in the maildrop.
+     */
+    private int parseMessageNumber(String argument) {
+        long index = parseNumber(argument);
+        return index >= 1 && index <= mb.size(true) ? (int) index : 0;
+    }
+
+    /**
+     * Parses a non-negative decimal number, without throwing on invalid input as <code>Integer.parseInt()</code> does.
+     *
+     * @return The number, or -1 if the argument is not a number or is too large.
+     */
+    private static long parseNumber(String argument) {
+        if (argument.isEmpty() || argument.length() > 18)
+            return -1;
+        long value = 0;
+        for (int i = 0; i < argument.length(); i++) {
+            char c = argument.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Sends the content of a message followed by the terminating line. Messages that do not need dot-stuffing
+     * (according to their metadata) are transferred from the mail storage to the socket as is, without being copied
+     * through user space; others are streamed through a dot-stuffing encoder into fixed-size buffers. Either way, the
+     * message is never loaded into memory, regardless of its size.
+     *
+     * @param index     The index of the message in the mailbox.
+     * @param bodyLines The number of lines of the body to send after the headers (for TOP), or -1 to send the whole
+     *                  message.
+     * @throws IOException If there is an error reading the file or writing to the socket.
+     */
+    private void sendMessageContent(int index, long bodyLines) throws IOException {
+        MessageMetadata metadata = mb.getMetadata(index);
+        // The content is written to the socket directly, so any buffered response must be sent first
+        socketOut.flush();
+        if (retrIn == null) {
+            retrIn = ByteBuffer.allocate(RETR_BUFFER_SIZE);
+            retrOut = ByteBuffer.allocate(2 * RETR_BUFFER_SIZE);
+        }
+        try (MessageContent content = mb.openMessage(index)) {
+            long end = bodyLines < 0 ? content.size() : findBodyEnd(content, metadata.getHeaderEnd(), bodyLines);
+            if (!metadata.isDotStuffingNeeded()) {
+                WritableByteChannel target = getSocketChannel();
+                long position = 0;
+                while (position < end) {
+                    long transferred = content.transferTo(position, end - position, target);
+                    if (transferred <= 0)
+                        break;
+                    position += transferred;
+                }
+                Metrics.POP3.addBytesOut(position);
+                retrOut.put((byte) '.').put((byte) '\r').put((byte) '\n');
+                writeRetrOut();
+                return;
+            }
+            long position = 0;
+            while (position < end || retrIn.position() > 0) {
+                if (position < end) {
+                    retrIn.limit((int) Math.min(retrIn.capacity(), retrIn.position() + end - position));
+                    int read = content.read(retrIn, position);
+                    position = read < 0 ? end : position + read;
+                }
+                retrIn.flip();
+                retrEncoder.encode(retrIn, retrOut);
+                retrIn.compact();
+                writeRetrOut();
+            }
+        }
+        retrEncoder.finish(retrOut);
+        writeRetrOut();
+    }
+
+    /**
+     * Finds the end of the first lines of a message body, for TOP. If the body has fewer lines, this is the end of the
+     * file.
+     *
+     * @return The position after the last line to be sent.
+     */
+    private long findBodyEnd(MessageContent content, long position, long lines) throws IOException {
+        while (lines > 0 && content.read(retrIn, position) > 0) {
+            retrIn.flip();
+            while (lines > 0 && retrIn.hasRemaining()) {
+                position++;
+                if (retrIn.get() == '\n')
+                    lines--;
+            }
+            retrIn.clear();
+        }
+        retrIn.clear();
+        return position;
+    }
+
+    private WritableByteChannel getSocketChannel() throws IOException {
+        SocketChannel socketChannel = socket.getChannel();
+        return socketChannel != null ? socketChannel : Channels.newChannel(socket.getOutputStream());
+    }
+
+    private void writeRetrOut() throws IOException {
+        retrOut.flip();
+        Metrics.POP3.addBytesOut(retrOut.remaining());
+        WritableByteChannel target = getSocketChannel();
+        while (retrOut.hasRemaining())
+            target.write(retrOut);
+        retrOut.clear();
+    }
+
+    /**
+     * Output stream that counts the bytes of the responses sent to the client.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            Metrics.POP3.addBytesOut(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            Metrics.POP3.addBytesOut(len);
         }
     }
 
@@ -280,33 +551,65 @@ public class MyPOPServer extends Thread {
         return pass;
     }
 
+    /**
+     * Refuses a connection that was not accepted by the admission policy, with a negative greeting, and closes it.
+     *
+     * @param socket The socket associated to the refused connection.
+     */
+    private static void refuse(Socket socket) {
+        EventLog.log(EventLog.Level.WARN, "pop3", 0, socket.getRemoteSocketAddress(), "refused", null, EventLog.NO_CODE,
+                null);
+        try (socket) {
+            socket.getOutputStream().write("-ERR Too many connections, try again later\r\n".getBytes());
+        } catch (IOException e) {
+            // The connection is closed anyway
+        }
+    }
+
     /**
      * Main process for the POP3 server. Handles the argument parsing and creates a listening server socket. Repeatedly
      * accepts new connections from individual clients, creating a new server instance that handles communication with
-     * that client in a separate thread.
+     * that client in a separate thread. The kind of thread is selected with the <code>--executor</code> option (see
+     * <code>ConnectionExecutors</code>), and the storage format of new mailboxes with the <code>--storage</code> option
+     * (see <code>Mailbox.setDefaultStorage()</code>). Metrics are exported through JMX and, with
+     * <code>--metrics-port</code>, over HTTP (see <code>Metrics</code>), and events are logged by
+     * <code>EventLog</code>, from the level given with <code>--log-level</code>. Connections are admitted according
+     * to the options of <code>AdmissionControl</code>, and closed after the <code>--idle-timeout</code> (in seconds).
      *
      * @param args The command-line arguments.
      * @throws IOException In case of an exception creating the server socket or accepting new connections.
      */
     public static void main(String[] args) throws IOException {
 
-        if (args.length != 1) {
-            throw new RuntimeException("This application must be executed with exactly one argument, the listening port.");
-        }
+        ServerOptions options = new ServerOptions(args, "executor", "storage", "metrics-port", "log-level",
+                "idle-timeout", "max-connections", "max-connections-per-ip", "connection-rate", "connection-burst");
+        EventLog.setLevel(options.get("log-level", "info"));
+        idleTimeout = options.getInt("idle-timeout", DEFAULT_IDLE_TIMEOUT) * 1000;
+        AdmissionControl admission = new AdmissionControl(options);
+        Mailbox.setDefaultStorage(options.get("storage", Mailbox.DIRECTORY_STORAGE));
+        Metrics.POP3.export(options.getInt("metrics-port", 0));
+        Executor executor = ConnectionExecutors.create(options.get("executor", "platform"), "pop3");
 
-        try (ServerSocket serverSocket = new ServerSocket(Integer.parseInt(args[0]))) {
+        // Sockets accepted through a channel expose their SocketChannel, which RETR writes message content to
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            ServerSocket serverSocket = serverChannel.socket();
             serverSocket.setReuseAddress(true);
+            serverSocket.bind(new InetSocketAddress(options.getPort()));
 
-            System.out.println("Waiting for connections on port " + serverSocket.getLocalPort() + "...");
+            EventLog.info("pop3", "listening", "port " + serverSocket.getLocalPort());
             while (true) {
-                Socket socket = serverSocket.accept();
-                System.out.println("Accepted a connection from " + socket.getRemoteSocketAddress());
+                Socket socket = serverChannel.accept().socket();
+                if (!admission.admit(socket.getInetAddress())) {
+                    refuse(socket);
+                    continue;
+                }
                 try {
-                    MyPOPServer handler = new MyPOPServer(socket);
-                    handler.start();
+                    MyPOPServer handler = new MyPOPServer(socket, admission);
+                    executor.execute(handler);
                 } catch (IOException e) {
-                    System.err.println("Error setting up an individual client's handler.");
-                    e.printStackTrace();
+                    EventLog.error("pop3", 0, socket.getRemoteSocketAddress(), "setup-error", e);
+                    admission.release(socket.getInetAddress());
+                    socket.close();
                 }
             }
         }
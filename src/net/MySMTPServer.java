@@ -1,22 +1,25 @@
 package net;
 import java.io.*;
-import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.UnknownHostException;
-import java.util.ArrayList;
-import java.util.List;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
 
-import mailbox.MailWriter;
+import mailbox.DeliveryQueue;
+import mailbox.GroupCommit;
 import mailbox.Mailbox;
 
 public class MySMTPServer extends Thread {
 
+    public static final int READ_BUFFER_SIZE = 8192;
+    public static final int MAX_PENDING_REPLIES = 65536;
+
     private final Socket socket;
-    private final BufferedReader socketIn;
-    private final PrintWriter socketOut;
-    String sender;
-    List<Mailbox> to = new ArrayList<Mailbox>();
+    private final InputStream socketIn;
+    private final OutputStream socketOut;
+    private final SMTPSession session;
+    private final AdmissionControl admission;
 
     /**
      * Initializes an object responsible for a connection to an individual client.
@@ -25,253 +28,178 @@ public class MySMTPServer extends Thread {
      * @throws IOException If there is an error attempting to retrieve the socket's information.
      */
     public MySMTPServer(Socket socket) throws IOException {
+        this(socket, null);
+    }
+
+    /**
+     * Initializes an object responsible for a connection to an individual client, which was accepted by an admission
+     * policy.
+     *
+     * @param socket    The socket associated to the accepted connection.
+     * @param admission The admission policy that accepted the connection, which is released once the connection is
+     *                  closed, or null.
+     * @throws IOException If there is an error attempting to retrieve the socket's information.
+     */
+    public MySMTPServer(Socket socket, AdmissionControl admission) throws IOException {
         this.socket = socket;
-        this.socketIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        this.socketOut = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
+        this.admission = admission;
+        this.socketIn = socket.getInputStream();
+        this.socketOut = socket.getOutputStream();
+        this.session = new SMTPSession(socket.getRemoteSocketAddress());
     }
 
     /**
      * Handles the communication with an individual client. Must send the initial welcome message, and then repeatedly
      * read requests, process the individual operation, and return a response, according to the SMTP protocol. Empty
      * request lines should be ignored. Only returns if the connection is terminated or if the QUIT command is issued.
-     * Must close the socket connection before returning.
+     * Must close the socket connection before returning. The connection is also closed, with a 421 reply, if the
+     * client sends nothing within the idle timeout or does not complete a command line within the command timeout
+     * (see <code>SMTPSession.setTimeouts()</code>).
      */
     @Override
     public void run() {
         try (this.socket) {
 
-            socketOut.write("220 "+ getHostName()+ " Service ready\r\n");
-            socketOut.flush();
+            socket.setSoTimeout(SMTPSession.getIdleTimeout());
+            session.greeting().writeTo(socketOut);
 
-            int state = 0;
-    
-            do {
-                String[] cmd;
-                cmd = socketIn.readLine().split(" ");
-                if(isValidCommand(cmd[0])) {
-                    switch (cmd[0].toUpperCase()) {
-                        case "HELO":
-                            socketOut.write("250 " + getHostName() + "\r\n");
-                            socketOut.flush();
-                            state = 1;
-                            break;
-                        case "EHLO":
-                            socketOut.write("250 " + getHostName() + "\r\n");
-                            socketOut.flush();
-                            state = 1;
-                            break;
-                        case "RSET":
-                            state = 1;
-                            to.clear();
-                            socketOut.write("250 OK\r\n");
-                            socketOut.flush();
-                            break;
-                        case "VRFY":
-                            if(cmd.length > 1) {
-                                if(Mailbox.isValidUser(cmd[1])) {
-                                    socketOut.write("250 OK\r\n");
-                                    socketOut.flush();
-                                    break;
-                                } else {
-                                    socketOut.write("550 Invalid User\r\n");
-                                    socketOut.flush();
-                                    break;
-                                }
-                            }
-                            socketOut.write("501 Invalid argument\r\n");
-                            socketOut.flush();
-                            break;
-                        case "NOOP":
-                            socketOut.write("250 OK\r\n");
-                            socketOut.flush();
-                            break;
-                        case "QUIT":
-                            socketOut.write("221 OK\r\n");
-                            socketOut.flush();
-                            socketOut.close();
-                            socketIn.close();
-                            socket.close();
-                            break;
-                        case "MAIL":
-                            if(state == 1) {
-                                if(cmd.length != 2) {
-                                    socketOut.write("500 Invalid command\r\n");
-                                    socketOut.flush();
-                                    break;
-                                }
-                                else if(!cmd[1].startsWith("FROM:<")) {
-                                    socketOut.write("501 Invalid argument\r\n");
-                                    socketOut.flush();
-                                    break;
-                                }
-                                else if(!cmd[1].endsWith(">")){
-                                    socketOut.write("501 Invalid argument\r\n");
-                                    socketOut.flush();
-                                    break;
-                                }
-                                sender = cmd[1].substring(6, cmd[1].length() - 1);
-                                System.out.println(sender);
-                                socketOut.write("250 OK\r\n");
-                                socketOut.flush();
-                                state = 2;
-                                break;
-                            }
-                            socketOut.write("503 Bad sequence of commands\r\n");
-                            socketOut.flush();
-                            break;
-                        case "RCPT":
-                            if(state > 1) {
-                                if(cmd.length != 2) {
-                                    socketOut.write("500 Invalid command\r\n");
-                                    socketOut.flush();
-                                    break;
-                                }
-                                else if(!cmd[1].startsWith("TO:<")) {
-                                    socketOut.write("500 Invalid command\r\n");
-                                    socketOut.flush();
-                                    break;
-                                }
-                                else if(!cmd[1].endsWith(">")) {
-                                    socketOut.write("501 Invalid argument\r\n");
-                                    socketOut.flush();
-                                    break;
-                                }
-                                String username = cmd[1].substring(4, cmd[1].length() - 1);
-                                if(!Mailbox.isValidUser(username)) {
-                                    socketOut.write("550 User not found\r\n");
-                                    socketOut.flush();
-                                    break;
-                                }
-                                Mailbox recip = new Mailbox(username);
-                                to.add(recip);
-                                socketOut.write("250 OK\r\n");
-                                socketOut.flush();
-                                state = 3;
-                                break;
-                            }
-                            else {
-                                socketOut.write("503 Bad sequence of commands\r\n");
-                                socketOut.flush();
-                                break;
-                            }
-                        case "DATA":
-                            if(state == 3) {
-                                socketOut.write("354 Start mail input; end with <CRLF>.<CRLF>\r\n");
-                                socketOut.flush();
-
-                                MailWriter writer = new MailWriter(to);
-                                String data = socketIn.readLine();
-                                while(!data.equals(".")) {
-                                    writer.write(data + "\n");
-                                    data = socketIn.readLine();
-                                }
-                                writer.flush();
-                                writer.close();
-                                socketOut.write("250 OK\r\n");
-                                socketOut.flush();
-                                state = 1;
-                                to.clear();
-                                break;
-                            }
-                            socketOut.write("503 Bad sequence of commands\r\n");
-                            socketOut.flush();
-                            break;
-                        default:
-                            socketOut.write("502 Command no implemented\r\n");
-                            socketOut.flush();
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            SMTPReply.Buffer replies = new SMTPReply.Buffer();
+            while(!session.isClosed()) {
+                int read;
+                try {
+                    read = socketIn.read(buffer);
+                }
+                catch(SocketTimeoutException e) {
+                    session.timeout().writeTo(socketOut);
+                    break;
+                }
+                if(read < 0) {
+                    break;
+                }
+                receive(ByteBuffer.wrap(buffer, 0, read), replies);
+                if(session.isCommandTimedOut()) {
+                    replies.append(session.timeout());
+                }
+                // Commands pipelined by the client are answered together, with a single write
+                while(!session.isClosed() && replies.length() < MAX_PENDING_REPLIES && socketIn.available() > 0) {
+                    read = socketIn.read(buffer);
+                    if(read < 0) {
+                        break;
                     }
+                    receive(ByteBuffer.wrap(buffer, 0, read), replies);
                 }
-                else {
-                    socketOut.write("500 Invalid Command\r\n");
-                    socketOut.flush();
+                if(replies.length() > 0) {
+                    replies.writeTo(socketOut);
+                    replies.clear();
                 }
-            } while(true);
+            }
         }
         catch (IOException e) {
-            System.err.println("Error in client's connection handling.");
-            e.printStackTrace();
+            EventLog.error("smtp", session.getId(), socket.getRemoteSocketAddress(), "connection-error", e);
+        }
+        finally {
+            session.close();
+            if(admission != null) {
+                admission.release(socket.getInetAddress());
+            }
         }
     }
 
     /**
-     * Retrieves the name of the current host. Used in the response of commands like HELO and EHLO.
-     * @return A string corresponding to the name of the current host.
+     * Passes the bytes received to the session. Whenever a message is completed, waits until it is durable before
+     * processing the rest of the bytes, so the replies are sent in order.
      */
-    private static String getHostName() {
-        try {
-            return InetAddress.getLocalHost().getHostName();
-        } catch (UnknownHostException e) {
-            try (BufferedReader reader = Runtime.getRuntime().exec(new String[] {"hostname"}).inputReader()) {
-                return reader.readLine();
-            } catch (IOException ex) {
-                return "unknown_host";
-            }
+    private void receive(ByteBuffer in, SMTPReply.Buffer replies) throws IOException {
+        session.receive(in, replies);
+        while(session.getPendingCommit() != null) {
+            session.completeCommit(replies);
+            session.receive(in, replies);
         }
     }
 
-    private static boolean isValidCommand(String cmd) {
-
-        boolean isValid = false;
-
-        switch(cmd.toUpperCase()) {
-            case "HELO":
-                isValid = true;
-                break;
-            case "EHLO":
-                isValid = true;
-                break;
-            case "MAIL":
-                isValid = true;
-                break;
-            case "RCPT":
-                isValid = true;
-                break;
-            case "DATA":
-                isValid = true;
-                break;
-            case "RSET":
-                isValid = true;
-                break;
-            case "VRFY":
-                isValid = true;
-                break;
-            case "NOOP":
-                isValid = true;
-                break;
-            case "QUIT":
-                isValid = true;
-                break;
+    /**
+     * Refuses a connection that was not accepted by the admission policy, with a 421 reply (RFC 5321, section 3.8), and
+     * closes it.
+     *
+     * @param socket The socket associated to the refused connection.
+     */
+    static void refuse(Socket socket) {
+        EventLog.log(EventLog.Level.WARN, "smtp", 0, socket.getRemoteSocketAddress(), "refused", null, 421, null);
+        try (socket) {
+            SMTPReply.tooManyConnections().writeTo(socket.getOutputStream());
+        } catch (IOException e) {
+            // The connection is closed anyway
         }
-        return isValid;
     }
-    
+
     /**
      * Main process for the SMTP server. Handles the argument parsing and creates a listening server socket. Repeatedly
      * accepts new connections from individual clients, creating a new server instance that handles communication with
-     * that client in a separate thread.
+     * that client in a separate thread. The kind of thread is selected with the <code>--executor</code> option (see
+     * <code>ConnectionExecutors</code>). If the <code>--nio</code> option is given, connections are instead handled by
+     * a fixed number of non-blocking event loops (by default, one per available processor), e.g. <code>--nio=4</code>;
+     * spool files are then written by the loops, so a slow disk delays all of a loop's connections. The storage format
+     * of new mailboxes is selected with the <code>--storage</code> option (see
+     * <code>Mailbox.setDefaultStorage()</code>), and messages are made durable in batches as configured by the
+     * <code>--commit-interval</code> (in milliseconds) and <code>--commit-batch</code> options (see
+     * <code>GroupCommit</code>). Accepted messages are delivered to the mailboxes by <code>--delivery-workers</code>
+     * background threads, and at most <code>--queue-capacity</code> messages wait to be delivered (see
+     * <code>DeliveryQueue</code>). Metrics are exported through JMX and, with <code>--metrics-port</code>, over HTTP
+     * (see <code>Metrics</code>). Events are logged by <code>EventLog</code>, from the level given with
+     * <code>--log-level</code> (e.g., <code>--log-level=debug</code> to log every command). Connections are admitted
+     * according to the options of <code>AdmissionControl</code>, and closed after the <code>--idle-timeout</code> or
+     * <code>--command-timeout</code> (in seconds). The name of the host is resolved once at startup, and resolved again
+     * every <code>--hostname-refresh</code> seconds if given (see <code>ServerIdentity</code>). Messages larger than
+     * <code>--max-message-size</code> bytes are refused (see <code>SMTPSession.setMaxMessageSize()</code>).
      *
      * @param args The command-line arguments.
      * @throws IOException In case of an exception creating the server socket or accepting new connections.
      */
     public static void main(String[] args) throws IOException {
 
-        if (args.length != 1) {
-            throw new RuntimeException("This application must be executed with exactly one argument, the listening port.");
+        ServerOptions options = new ServerOptions(args, "nio", "executor", "storage", "commit-interval", "commit-batch",
+                "queue-capacity", "delivery-workers", "metrics-port", "log-level", "idle-timeout", "command-timeout",
+                "max-connections", "max-connections-per-ip", "connection-rate", "connection-burst",
+                "hostname-refresh", "max-message-size");
+        EventLog.setLevel(options.get("log-level", "info"));
+        ServerIdentity.start(options.getInt("hostname-refresh", 0));
+        Mailbox.setDefaultStorage(options.get("storage", Mailbox.DIRECTORY_STORAGE));
+        GroupCommit.configure(options.getInt("commit-interval", (int) GroupCommit.DEFAULT_INTERVAL),
+                options.getInt("commit-batch", GroupCommit.DEFAULT_BATCH_SIZE));
+        DeliveryQueue.start(options.getInt("queue-capacity", DeliveryQueue.DEFAULT_CAPACITY),
+                options.getInt("delivery-workers", DeliveryQueue.DEFAULT_WORKERS));
+        Metrics.SMTP.export(options.getInt("metrics-port", 0));
+        SMTPSession.setTimeouts(options.getInt("idle-timeout", SMTPSession.DEFAULT_TIMEOUT),
+                options.getInt("command-timeout", SMTPSession.DEFAULT_TIMEOUT));
+        SMTPSession.setMaxMessageSize(options.getLong("max-message-size", SMTPSession.DEFAULT_MAX_MESSAGE_SIZE));
+        AdmissionControl admission = new AdmissionControl(options);
+
+        if (options.has("nio")) {
+            SMTPEventLoop.serve(options.getPort(), options.getInt("nio", Runtime.getRuntime().availableProcessors()),
+                    admission);
+            return;
         }
 
-        try (ServerSocket serverSocket = new ServerSocket(Integer.parseInt(args[0]))) {
+        Executor executor = ConnectionExecutors.create(options.get("executor", "platform"), "smtp");
+
+        try (ServerSocket serverSocket = new ServerSocket(options.getPort())) {
             serverSocket.setReuseAddress(true);
-            System.out.println("Waiting for connections on port " + serverSocket.getLocalPort() + "...");
+            EventLog.info("smtp", "listening", "port " + serverSocket.getLocalPort());
             //noinspection InfiniteLoopStatement
             while (true) {
                 Socket socket = serverSocket.accept();
-                System.out.println("Accepted a connection from " + socket.getRemoteSocketAddress());
+                if (!admission.admit(socket.getInetAddress())) {
+                    refuse(socket);
+                    continue;
+                }
                 try {
-                    MySMTPServer handler = new MySMTPServer(socket);
-                    handler.start();
+                    MySMTPServer handler = new MySMTPServer(socket, admission);
+                    executor.execute(handler);
                 } catch (IOException e) {
-                    System.err.println("Error setting up an individual client's handler.");
-                    e.printStackTrace();
+                    EventLog.error("smtp", 0, socket.getRemoteSocketAddress(), "setup-error", e);
+                    admission.release(socket.getInetAddress());
+                    socket.close();
                 }
             }
         }
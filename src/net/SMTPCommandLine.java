@@ -0,0 +1,202 @@
+package net;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A command line received from an SMTP client, parsed in place in the line buffer of the session. The line is split
+ * into words, separated by one or more spaces, which are only kept as offsets; the verb is matched case-insensitively
+ * against the known commands, and the path of MAIL and RCPT is located with its ESMTP parameters (RFC 5321, section
+ * 4.1.2). Parsing a line does not allocate anything, so the same object is reused for every line of a session, and only
+ * the values the session keeps, such as addresses, are copied into strings.
+ */
+final class SMTPCommandLine {
+
+    enum Verb {
+        HELO, EHLO, MAIL, RCPT, DATA, RSET, VRFY, NOOP, QUIT, BDAT
+    }
+
+    private static final Verb[] VERBS = Verb.values();
+
+    private byte[] line;
+    private Verb verb;
+    /**
+     * Start and end offsets of each word, the verb being the first one.
+     */
+    private int[] words = new int[16];
+    private int wordCount = 0;
+    private int pathStart = -1;
+    private int pathEnd = -1;
+
+    /**
+     * Parses a command line.
+     *
+     * @param line   The buffer holding the line.
+     * @param length The length of the line, without its line terminator.
+     * @return The verb of the command, or null if it is not recognized.
+     */
+    Verb parse(byte[] line, int length) {
+        this.line = line;
+        wordCount = 0;
+        pathStart = -1;
+        pathEnd = -1;
+        int i = 0;
+        while (i < length) {
+            if (line[i] == ' ') {
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < length && line[i] != ' ')
+                i++;
+            if (2 * wordCount + 2 > words.length)
+                words = Arrays.copyOf(words, words.length * 2);
+            words[2 * wordCount] = start;
+            words[2 * wordCount + 1] = i;
+            wordCount++;
+        }
+        verb = null;
+        if (wordCount > 0) {
+            for (Verb candidate : VERBS) {
+                if (wordEquals(0, candidate.name())) {
+                    verb = candidate;
+                    break;
+                }
+            }
+        }
+        return verb;
+    }
+
+    Verb getVerb() {
+        return verb;
+    }
+
+    /**
+     * Returns the verb as received, for the log. Unlike the other methods, creates a new string.
+     */
+    String getVerbText(Charset charset) {
+        return wordCount > 0 ? new String(line, words[0], words[1] - words[0], charset) : "";
+    }
+
+    /**
+     * Returns the number of words after the verb.
+     */
+    int getArgumentCount() {
+        return wordCount - 1;
+    }
+
+    String getArgument(int index, Charset charset) {
+        int start = words[2 * (index + 1)];
+        return new String(line, start, words[2 * (index + 1) + 1] - start, charset);
+    }
+
+    /**
+     * Compares an argument with a keyword, ignoring case.
+     *
+     * @param index   The index of the argument, the first word after the verb being 0.
+     * @param keyword The keyword, in upper case.
+     */
+    boolean argumentEquals(int index, String keyword) {
+        return wordEquals(index + 1, keyword);
+    }
+
+    /**
+     * Checks whether an argument starts with a prefix, ignoring case, e.g., the keyword of an ESMTP parameter.
+     *
+     * @param index  The index of the argument.
+     * @param prefix The prefix, in upper case.
+     */
+    boolean argumentStartsWith(int index, String prefix) {
+        int start = words[2 * (index + 1)];
+        int end = words[2 * (index + 1) + 1];
+        return end - start >= prefix.length() && regionEquals(start, start + prefix.length(), prefix);
+    }
+
+    /**
+     * Parses an argument as a non-negative decimal number.
+     *
+     * @return The number, or -1 if the argument is not a number or is too large.
+     */
+    long argumentAsNumber(int index) {
+        return argumentAsNumber(index, 0);
+    }
+
+    /**
+     * Parses the end of an argument as a non-negative decimal number, e.g., the value of an ESMTP parameter.
+     *
+     * @param index  The index of the argument.
+     * @param offset The number of characters of the argument before the number.
+     * @return The number, or -1 if the rest of the argument is not a number or is too large.
+     */
+    long argumentAsNumber(int index, int offset) {
+        return parseNumber(words[2 * (index + 1)] + offset, words[2 * (index + 1) + 1]);
+    }
+
+    /**
+     * Locates the path of a MAIL or RCPT command, e.g., <code>FROM:&lt;user@example.com&gt;</code>. Spaces between the
+     * prefix and the path are tolerated, as some clients send them. The words after the path are the ESMTP parameters.
+     *
+     * @param prefix The prefix of the path (<code>FROM:</code> or <code>TO:</code>), in upper case.
+     * @return The index of the first argument after the path, or -1 if the arguments do not start with a valid path.
+     */
+    int parsePath(String prefix) {
+        if (wordCount < 2)
+            return -1;
+        int start = words[2];
+        int end = words[3];
+        int prefixLength = prefix.length();
+        if (end - start < prefixLength || !regionEquals(start, start + prefixLength, prefix))
+            return -1;
+        int next = 2;
+        start += prefixLength;
+        if (start == end) {
+            // The path is the next word
+            if (wordCount < 3)
+                return -1;
+            start = words[4];
+            end = words[5];
+            next = 3;
+        }
+        if (end - start < 2 || line[start] != '<' || line[end - 1] != '>')
+            return -1;
+        pathStart = start + 1;
+        pathEnd = end - 1;
+        return next - 1;
+    }
+
+    /**
+     * Returns the path located by <code>parsePath()</code>, without its angle brackets.
+     */
+    String getPath(Charset charset) {
+        return new String(line, pathStart, pathEnd - pathStart, charset);
+    }
+
+    private boolean wordEquals(int word, String upperCase) {
+        int start = words[2 * word];
+        int end = words[2 * word + 1];
+        return end - start == upperCase.length() && regionEquals(start, end, upperCase);
+    }
+
+    private boolean regionEquals(int start, int end, String upperCase) {
+        for (int i = start; i < end; i++) {
+            if (toUpperCase(line[i]) != upperCase.charAt(i - start))
+                return false;
+        }
+        return true;
+    }
+
+    private long parseNumber(int start, int end) {
+        if (start == end || end - start > 18)
+            return -1;
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            if (line[i] < '0' || line[i] > '9')
+                return -1;
+            value = value * 10 + (line[i] - '0');
+        }
+        return value;
+    }
+
+    private static int toUpperCase(byte b) {
+        return b >= 'a' && b <= 'z' ? b - ('a' - 'A') : b;
+    }
+}
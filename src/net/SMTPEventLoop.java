@@ -0,0 +1,325 @@
+package net;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking SMTP server. Instead of one thread per connection, a fixed number of event-loop threads multiplex all
+ * connections with a Selector. Each connection keeps its protocol state in an <code>SMTPSession</code>, which is fed
+ * whatever bytes are available on the channel. Once per second, each loop closes the connections that exceeded the
+ * idle or command timeout.
+ * <p>
+ * Spool files are written by the loop's thread, and only forced to disk in the background, so a slow disk stalls all
+ * of the loop's connections.
+ */
+public class SMTPEventLoop extends Thread {
+
+    public static final int READ_BUFFER_SIZE = 8192;
+    private static final long TIMEOUT_CHECK_INTERVAL = 1000;
+
+    private final Selector selector;
+    private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AdmissionControl admission;
+    private long lastTimeoutCheck = System.currentTimeMillis();
+
+    /**
+     * Creates a new event loop with its own selector. The loop does not process any connections until it is started
+     * and connections are handed to it with <code>register()</code>.
+     *
+     * @param name      Name of the event-loop thread.
+     * @param admission The admission policy that accepted the connections handed to this loop, which are released
+     *                  once closed, or null.
+     * @throws IOException If the selector cannot be opened.
+     */
+    public SMTPEventLoop(String name, AdmissionControl admission) throws IOException {
+        super(name);
+        this.selector = Selector.open();
+        this.admission = admission;
+    }
+
+    /**
+     * Hands a newly accepted connection to this event loop. May be called from any thread.
+     *
+     * @param channel The channel associated to the accepted connection.
+     */
+    public void register(SocketChannel channel) {
+        pending.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs a task in this event loop's thread. May be called from any thread.
+     *
+     * @param task The task to run.
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Repeatedly waits for connections to become readable or writable and processes them. Only returns if the
+     * selector fails.
+     */
+    @Override
+    public void run() {
+        try {
+            //noinspection InfiniteLoopStatement
+            while (true) {
+                selector.select(TIMEOUT_CHECK_INTERVAL);
+                registerPending();
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                    task.run();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable())
+                            connection.read();
+                        if (key.isValid() && key.isWritable())
+                            connection.write();
+                    } catch (IOException e) {
+                        connection.close();
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastTimeoutCheck >= TIMEOUT_CHECK_INTERVAL) {
+                    lastTimeoutCheck = now;
+                    closeTimedOut(now);
+                }
+            }
+        } catch (IOException e) {
+            EventLog.error("smtp", 0, null, "event-loop-error", e);
+        }
+    }
+
+    /**
+     * Closes the connections whose client sent nothing within the idle timeout, or did not complete a command line
+     * within the command timeout. Connections waiting for a commit are not the client's fault, and are left alone.
+     */
+    private void closeTimedOut(long now) {
+        for (SelectionKey key : selector.keys()) {
+            Connection connection = (Connection) key.attachment();
+            if (connection == null || !key.isValid() || connection.committing || connection.session.isClosed())
+                continue;
+            if (now - connection.lastActivity < SMTPSession.getIdleTimeout() && !connection.session.isCommandTimedOut())
+                continue;
+            if (connection.out.position() > 0) {
+                // The client is not even reading the previous replies
+                connection.close();
+                continue;
+            }
+            try {
+                connection.reply(connection.session.timeout());
+                connection.write();
+            } catch (IOException e) {
+                connection.close();
+            }
+        }
+    }
+
+    private void registerPending() {
+        SocketChannel channel;
+        while ((channel = pending.poll()) != null) {
+            Connection connection = null;
+            try {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                connection = new Connection(this, channel, key);
+                key.attach(connection);
+                connection.reply(connection.session.greeting());
+                connection.write();
+            } catch (IOException e) {
+                EventLog.error("smtp", 0, null, "setup-error", e);
+                if (connection != null) {
+                    connection.close();
+                    continue;
+                }
+                if (admission != null)
+                    admission.release(channel.socket().getInetAddress());
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    // Nothing else to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Per-connection state: the SMTP session and the replies not yet written. While a message received from the client
+     * is being made durable, the connection stops reading, and the input received after the message is kept until the
+     * commit is complete.
+     */
+    private static class Connection {
+
+        private final SMTPEventLoop loop;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final SMTPSession session;
+        private final ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private ByteBuffer out = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final SMTPReply.Buffer replies = new SMTPReply.Buffer();
+        private boolean committing = false;
+        private long lastActivity = System.currentTimeMillis();
+        private final InetAddress address;
+
+        Connection(SMTPEventLoop loop, SocketChannel channel, SelectionKey key) throws IOException {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+            this.session = new SMTPSession(channel.getRemoteAddress());
+            this.address = channel.socket().getInetAddress();
+        }
+
+        /**
+         * Reads the available bytes, lets the session process them, and sends back the resulting replies.
+         */
+        void read() throws IOException {
+            // Everything the client has pipelined so far is processed before the replies are written
+            int read;
+            while (!committing && !session.isClosed() && replies.length() < MySMTPServer.MAX_PENDING_REPLIES
+                    && (read = channel.read(in)) != 0) {
+                if (read < 0) {
+                    close();
+                    return;
+                }
+                lastActivity = System.currentTimeMillis();
+                in.flip();
+                session.receive(in, replies);
+                if (session.getPendingCommit() != null)
+                    awaitCommit();
+                else
+                    in.clear();
+            }
+            if (replies.length() > 0) {
+                reserve(replies.length());
+                replies.copyTo(out);
+                replies.clear();
+            }
+            write();
+        }
+
+        /**
+         * Stops reading until the message just received is durable. The remaining input is processed afterwards, in
+         * the event loop's thread.
+         */
+        private void awaitCommit() {
+            committing = true;
+            session.getPendingCommit().whenComplete((result, failure) -> loop.execute(this::commitCompleted));
+        }
+
+        private void commitCompleted() {
+            if (!key.isValid())
+                return;
+            committing = false;
+            try {
+                session.completeCommit(replies);
+                session.receive(in, replies);
+                if (session.getPendingCommit() != null)
+                    awaitCommit();
+                else
+                    in.clear();
+                read();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Queues a reply to be written to the client.
+         */
+        void reply(SMTPReply reply) {
+            reserve(reply.length());
+            reply.copyTo(out);
+        }
+
+        /**
+         * Makes room for the given number of bytes in the output buffer.
+         */
+        private void reserve(int length) {
+            if (out.remaining() < length) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + length));
+                out.flip();
+                larger.put(out);
+                out = larger;
+            }
+        }
+
+        /**
+         * Writes as much of the pending replies as the channel accepts, and waits for the channel to become writable
+         * if anything is left. Closes the connection once the session is finished and all replies are sent.
+         */
+        void write() throws IOException {
+            out.flip();
+            channel.write(out);
+            out.compact();
+            if (out.position() > 0) {
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else if (session.isClosed()) {
+                close();
+            } else {
+                key.interestOps(committing ? 0 : SelectionKey.OP_READ);
+            }
+        }
+
+        void close() {
+            if (!channel.isOpen())
+                return;
+            if (loop.admission != null)
+                loop.admission.release(address);
+            session.close();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing else to do
+            }
+        }
+    }
+
+    /**
+     * Accepts connections on the specified port and distributes them round-robin across a fixed set of event loops.
+     * Only returns if the server channel fails.
+     *
+     * @param port      The listening port.
+     * @param threads   The number of event-loop threads.
+     * @param admission The admission policy deciding which connections are accepted.
+     * @throws IOException In case of an exception creating the server channel or accepting new connections.
+     */
+    public static void serve(int port, int threads, AdmissionControl admission) throws IOException {
+        SMTPEventLoop[] loops = new SMTPEventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new SMTPEventLoop("smtp-loop-" + i, admission);
+            loops[i].start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.bind(new InetSocketAddress(port));
+            EventLog.info("smtp", "listening", "port " + serverChannel.socket().getLocalPort() + " using " + threads
+                    + " event loops");
+            //noinspection InfiniteLoopStatement
+            for (int next = 0; ; next = (next + 1) % threads) {
+                SocketChannel channel = serverChannel.accept();
+                if (!admission.admit(channel.socket().getInetAddress())) {
+                    MySMTPServer.refuse(channel.socket());
+                    continue;
+                }
+                loops[next].register(channel);
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package net;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A reply of the SMTP server, encoded once into the bytes sent to the client. Replies are immutable, so the fixed
+ * replies are shared by all sessions, and are copied into the output of a connection without being encoded again. The
+ * replies that include the name of the host (the greeting and the replies to HELO and EHLO, among others) are built
+ * from <code>ServerIdentity</code>, and only built again if the name changes.
+ */
+public final class SMTPReply {
+
+    public static final SMTPReply OK = new SMTPReply("250 OK");
+    public static final SMTPReply CLOSING = new SMTPReply("221 OK");
+    public static final SMTPReply START_MAIL_INPUT = new SMTPReply("354 Start mail input; end with <CRLF>.<CRLF>");
+    public static final SMTPReply INVALID_COMMAND = new SMTPReply("500 Invalid Command");
+    public static final SMTPReply INVALID_SYNTAX = new SMTPReply("500 Invalid command");
+    public static final SMTPReply LINE_TOO_LONG = new SMTPReply("500 Line too long");
+    public static final SMTPReply INVALID_ARGUMENT = new SMTPReply("501 Invalid argument");
+    public static final SMTPReply BDAT_SYNTAX = new SMTPReply("501 Syntax: BDAT <size> [LAST]");
+    public static final SMTPReply INVALID_CHUNK_SIZE = new SMTPReply("501 Invalid chunk size");
+    public static final SMTPReply BAD_SEQUENCE = new SMTPReply("503 Bad sequence of commands");
+    public static final SMTPReply INVALID_USER = new SMTPReply("550 Invalid User");
+    public static final SMTPReply USER_NOT_FOUND = new SMTPReply("550 User not found");
+    public static final SMTPReply BINARY_REQUIRES_BDAT = new SMTPReply("554 BINARYMIME content must be sent with BDAT");
+    public static final SMTPReply PARAMETERS_NOT_RECOGNIZED = new SMTPReply("555 MAIL FROM parameters not recognized");
+    public static final SMTPReply RCPT_PARAMETERS_NOT_RECOGNIZED =
+            new SMTPReply("555 RCPT TO parameters not recognized");
+    /**
+     * Reply to a message larger than the maximum message size (RFC 1870, section 6).
+     */
+    public static final SMTPReply MESSAGE_TOO_LARGE =
+            new SMTPReply("552 Message size exceeds fixed maximum message size");
+    /**
+     * Reply to a recipient whose mailbox is over its quota, or would be with the declared size of the message. It is a
+     * temporary failure, as the user may delete messages before the client tries again.
+     */
+    public static final SMTPReply MAILBOX_FULL = new SMTPReply("452 Requested action not taken: mailbox full");
+    /**
+     * Reply to a recipient whose quota is smaller than the declared size of the message.
+     */
+    public static final SMTPReply QUOTA_EXCEEDED =
+            new SMTPReply("552 Requested mail action aborted: exceeded storage allocation");
+    public static final SMTPReply LOCAL_ERROR =
+            new SMTPReply("451 Requested action aborted: local error in processing");
+    /**
+     * Reply to a message refused because the delivery queue is full. It is a temporary failure, so the client tries
+     * again later, once the queued messages have been delivered.
+     */
+    public static final SMTPReply INSUFFICIENT_STORAGE =
+            new SMTPReply("452 Requested action not taken: insufficient system storage");
+
+    private static volatile HostReplies hostReplies = null;
+
+    private final byte[] bytes;
+
+    /**
+     * Encodes a reply.
+     *
+     * @param text The text of the reply, without the final line terminator. The lines of a multi-line reply are
+     *             separated by CRLF.
+     */
+    public SMTPReply(String text) {
+        this.bytes = (text + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Returns the three-digit reply code.
+     */
+    public int getCode() {
+        return (bytes[0] - '0') * 100 + (bytes[1] - '0') * 10 + (bytes[2] - '0');
+    }
+
+    /**
+     * Returns the number of bytes of the reply, including its line terminator.
+     */
+    public int length() {
+        return bytes.length;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes);
+    }
+
+    public void copyTo(ByteBuffer out) {
+        out.put(bytes);
+    }
+
+    /**
+     * Returns the welcome message sent as soon as a connection is established.
+     */
+    public static SMTPReply greeting() {
+        return getHostReplies().greeting;
+    }
+
+    /**
+     * Returns the reply to HELO.
+     */
+    public static SMTPReply helo() {
+        return getHostReplies().helo;
+    }
+
+    /**
+     * Returns the reply to EHLO, listing the supported service extensions (see <code>SMTPSession.EXTENSIONS</code>).
+     */
+    public static SMTPReply ehlo() {
+        return getHostReplies().ehlo;
+    }
+
+    /**
+     * Returns the reply sent before closing a connection whose client did not send a command in time.
+     */
+    public static SMTPReply timeout() {
+        return getHostReplies().timeout;
+    }
+
+    /**
+     * Returns the reply sent to a connection refused by the admission policy.
+     */
+    public static SMTPReply tooManyConnections() {
+        return getHostReplies().tooManyConnections;
+    }
+
+    private static HostReplies getHostReplies() {
+        String hostName = ServerIdentity.getHostName();
+        long maxMessageSize = SMTPSession.getMaxMessageSize();
+        HostReplies replies = hostReplies;
+        // Only compared by reference, as the name is only replaced when it is resolved again
+        if (replies == null || replies.hostName != hostName || replies.maxMessageSize != maxMessageSize) {
+            replies = new HostReplies(hostName, maxMessageSize);
+            hostReplies = replies;
+        }
+        return replies;
+    }
+
+    /**
+     * The replies that include the name of the host, or the maximum message size.
+     */
+    private static class HostReplies {
+
+        private final String hostName;
+        private final long maxMessageSize;
+        private final SMTPReply greeting;
+        private final SMTPReply helo;
+        private final SMTPReply ehlo;
+        private final SMTPReply timeout;
+        private final SMTPReply tooManyConnections;
+
+        HostReplies(String hostName, long maxMessageSize) {
+            this.hostName = hostName;
+            this.maxMessageSize = maxMessageSize;
+            this.greeting = new SMTPReply("220 " + hostName + " Service ready");
+            this.helo = new SMTPReply("250 " + hostName);
+            StringBuilder ehlo = new StringBuilder("250-").append(hostName)
+                    .append("\r\n250-SIZE ").append(maxMessageSize);
+            for (int i = 0; i < SMTPSession.EXTENSIONS.length; i++)
+                ehlo.append(i < SMTPSession.EXTENSIONS.length - 1 ? "\r\n250-" : "\r\n250 ")
+                        .append(SMTPSession.EXTENSIONS[i]);
+            this.ehlo = new SMTPReply(ehlo.toString());
+            this.timeout = new SMTPReply("421 " + hostName + " Timeout, closing transmission channel");
+            this.tooManyConnections = new SMTPReply("421 " + hostName
+                    + " Service not available, too many connections");
+        }
+    }
+
+    /**
+     * Growable buffer of the replies not yet sent on a connection. Replies are appended as bytes, and the whole buffer
+     * is written at once, so the replies to pipelined commands are sent together.
+     */
+    public static class Buffer {
+
+        private byte[] bytes = new byte[256];
+        private int length = 0;
+
+        public void append(SMTPReply reply) {
+            if (length + reply.bytes.length > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + reply.bytes.length));
+            System.arraycopy(reply.bytes, 0, bytes, length, reply.bytes.length);
+            length += reply.bytes.length;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        public void clear() {
+            length = 0;
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(bytes, 0, length);
+        }
+
+        public void copyTo(ByteBuffer out) {
+            out.put(bytes, 0, length);
+        }
+    }
+}
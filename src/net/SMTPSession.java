@@ -0,0 +1,657 @@
+package net;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import mailbox.DeliveryQueue;
+import mailbox.MailWriter;
+import mailbox.Mailbox;
+import mailbox.Quotas;
+import net.SMTPCommandLine.Verb;
+
+/**
+ * Protocol state of an individual SMTP connection. Keeps track of the current state of the conversation, the sender
+ * and the recipient mailboxes, and turns the bytes received from the client into the corresponding replies. Request
+ * lines are assembled incrementally and parsed in place (see <code>SMTPCommandLine</code>), commands are dispatched
+ * through a table of handlers by the state of the conversation, and mail content is transcoded with
+ * <code>DotStuffing.Decoder</code> straight into the recipients' mailboxes. The session performs no I/O on the
+ * connection itself, so the same object can be driven by the blocking handler in <code>MySMTPServer</code> and by the
+ * non-blocking <code>SMTPEventLoop</code>.
+ * <p>
+ * A message is only acknowledged once it is durable. When a message is complete, the session stops processing input
+ * until its commit (see <code>getPendingCommit()</code>) is complete and <code>completeCommit()</code> is called, so
+ * the replies to commands pipelined after the message are not sent before the reply to the message itself. Messages
+ * are then delivered to the mailboxes in the background by the <code>DeliveryQueue</code>, and are refused with a
+ * temporary failure while the queue is full.
+ */
+public class SMTPSession {
+
+    public static final int MAX_LINE_LENGTH = 65536;
+    /**
+     * Default time, in seconds, that the server waits for the next command (RFC 5321, section 4.5.3.2.7, requires at
+     * least 5 minutes), and that a client may take to send a complete command line.
+     */
+    public static final int DEFAULT_TIMEOUT = 300;
+    /**
+     * Default maximum size of a message, in bytes.
+     */
+    public static final long DEFAULT_MAX_MESSAGE_SIZE = 10 * 1024 * 1024;
+    /**
+     * Service extensions advertised in the reply to EHLO, after SIZE (RFC 1870), which is advertised with the maximum
+     * message size. Replies to pipelined commands (RFC 2920) are only sent once all commands received so far have been
+     * processed. Content received with BDAT (RFC 3030) is saved exactly as received, and content received with DATA is
+     * only dot-unstuffed, so 8-bit content is preserved either way.
+     */
+    static final String[] EXTENSIONS = {"PIPELINING", "8BITMIME", "CHUNKING", "BINARYMIME"};
+    private static final Charset CHARSET = Charset.defaultCharset();
+    /**
+     * Commands accepted in any state of the conversation.
+     */
+    private static final Set<State> ANY_STATE = EnumSet.allOf(State.class);
+    /**
+     * Dispatch table: the handler of each command, and the states of the conversation in which it is accepted.
+     * Commands received in any other state are rejected with a 503 reply before their arguments are even looked at.
+     * BDAT is accepted in any state, as the content of the chunk must be received even if the command is rejected.
+     */
+    private static final Map<Verb, Handler> HANDLERS = new EnumMap<>(Verb.class);
+    private static final Map<Verb, Set<State>> ACCEPTED_STATES = new EnumMap<>(Verb.class);
+
+    static {
+        on(Verb.HELO, ANY_STATE, SMTPSession::hello);
+        on(Verb.EHLO, ANY_STATE, SMTPSession::extendedHello);
+        on(Verb.RSET, ANY_STATE, SMTPSession::reset);
+        on(Verb.VRFY, ANY_STATE, SMTPSession::verify);
+        on(Verb.NOOP, ANY_STATE, SMTPSession::noop);
+        on(Verb.QUIT, ANY_STATE, SMTPSession::quit);
+        on(Verb.MAIL, EnumSet.of(State.READY), SMTPSession::mail);
+        on(Verb.RCPT, EnumSet.of(State.MAIL, State.RCPT), SMTPSession::recipient);
+        on(Verb.DATA, EnumSet.of(State.RCPT), SMTPSession::data);
+        on(Verb.BDAT, ANY_STATE, SMTPSession::chunk);
+    }
+
+    /**
+     * States of the conversation: before the client greets the server, ready for a new message, after the sender of
+     * the message is given, and once it has at least one recipient.
+     */
+    private enum State { INIT, READY, MAIL, RCPT }
+
+    /**
+     * Processes a command, whose line is parsed in <code>command</code>.
+     */
+    private interface Handler {
+        SMTPReply handle(SMTPSession session);
+    }
+
+    private static volatile int idleTimeout = DEFAULT_TIMEOUT * 1000;
+    private static volatile long commandTimeout = DEFAULT_TIMEOUT * 1_000_000_000L;
+    private static volatile long maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+
+    private State state = State.INIT;
+    private String sender;
+    private final List<Mailbox> to = new ArrayList<Mailbox>();
+    private MailWriter dataWriter = null;
+    private boolean closed = false;
+
+    private byte[] line = new byte[256];
+    private int lineLength = 0;
+    private boolean lineTooLong = false;
+    private long lineStarted = 0;
+    private final SMTPCommandLine command = new SMTPCommandLine();
+    private final DotStuffing.Decoder dataDecoder = new DotStuffing.Decoder();
+    private ByteBuffer dataBuffer = null;
+
+    private boolean binaryBody = false;
+    private long declaredSize = 0;
+    private MailWriter chunkWriter = null;
+    private long chunkRemaining = 0;
+    private long chunkSize = 0;
+    private long messageSize = 0;
+    private boolean messageTooLarge = false;
+    private boolean lastChunk = false;
+    private SMTPReply chunkError = null;
+
+    private CompletableFuture<Void> pendingCommit = null;
+    private SMTPReply pendingReply = null;
+    private boolean released = false;
+    private final long id = EventLog.newSessionId();
+    private final Object remote;
+
+    /**
+     * Creates the session of a new connection.
+     *
+     * @param remote The remote address of the client, used in the log.
+     */
+    public SMTPSession(Object remote) {
+        this.remote = remote;
+        Metrics.SMTP.sessionOpened();
+        EventLog.log(EventLog.Level.INFO, "smtp", id, remote, "connect", null, EventLog.NO_CODE, null);
+    }
+
+    /**
+     * Sets the timeouts of all sessions.
+     *
+     * @param idleSeconds    The time the server waits for the client to send anything while awaiting a command.
+     * @param commandSeconds The time a client may take to send a complete command line, however slowly it sends it.
+     */
+    public static void setTimeouts(int idleSeconds, int commandSeconds) {
+        idleTimeout = idleSeconds * 1000;
+        commandTimeout = commandSeconds * 1_000_000_000L;
+    }
+
+    /**
+     * Sets the maximum size of a message, for all sessions. A message declared larger with the <code>SIZE</code>
+     * parameter of MAIL is refused right away, and a message that turns out to be larger while it is received is
+     * discarded, along with the part already saved, and refused once it is complete.
+     *
+     * @param size The maximum size, in bytes.
+     */
+    public static void setMaxMessageSize(long size) {
+        maxMessageSize = size;
+    }
+
+    public static long getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    /**
+     * Returns the time, in milliseconds, that the server waits for the client to send anything while awaiting a
+     * command, before closing the connection with <code>timeout()</code>.
+     */
+    public static int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Returns true if the client started sending a command line, and did not complete it within the command timeout.
+     * Used to close connections that send bytes just often enough to avoid the idle timeout.
+     */
+    public boolean isCommandTimedOut() {
+        return lineLength > 0 && System.nanoTime() - lineStarted > commandTimeout;
+    }
+
+    /**
+     * Finishes the session because the client did not send a command in time.
+     *
+     * @return The reply to send before closing the connection.
+     */
+    public SMTPReply timeout() {
+        closed = true;
+        EventLog.log(EventLog.Level.INFO, "smtp", id, remote, "timeout", state.name(), EventLog.NO_CODE, null);
+        return SMTPReply.timeout();
+    }
+
+    /**
+     * Returns the identifier of the session in the log.
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Returns the welcome message sent as soon as the connection is established.
+     *
+     * @return The greeting line, including the line terminator.
+     */
+    public SMTPReply greeting() {
+        SMTPReply greeting = SMTPReply.greeting();
+        Metrics.SMTP.addBytesOut(greeting.length());
+        return greeting;
+    }
+
+    /**
+     * Returns true once the client has issued the QUIT command and the connection should be closed after the pending
+     * replies are sent.
+     *
+     * @return true if the session is finished, and false otherwise.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Processes the bytes received from the client, appending the corresponding replies. All bytes in the input buffer
+     * are consumed, unless the client issues the QUIT command, in which case anything after it is ignored, or a message
+     * is completed, in which case the remaining bytes are left in the buffer until its commit is complete. Incomplete
+     * lines are kept until the rest of the line is received.
+     *
+     * @param in      The bytes received from the client.
+     * @param replies The buffer to which replies, including their line terminators, are appended.
+     * @throws IOException If there is an error saving the mail content.
+     */
+    public void receive(ByteBuffer in, SMTPReply.Buffer replies) throws IOException {
+        int start = in.position();
+        int repliesStart = replies.length();
+        try {
+            receiveBytes(in, replies);
+        } finally {
+            Metrics.SMTP.addBytesIn(in.position() - start);
+            Metrics.SMTP.addBytesOut(replies.length() - repliesStart);
+        }
+    }
+
+    private void receiveBytes(ByteBuffer in, SMTPReply.Buffer replies) throws IOException {
+        while (in.hasRemaining() && !closed && pendingCommit == null) {
+            if (chunkRemaining > 0) {
+                receiveChunk(in);
+                if (chunkRemaining == 0) {
+                    SMTPReply reply = completeChunk();
+                    if (reply != null)
+                        replies.append(reply);
+                }
+                continue;
+            }
+            if (dataWriter != null) {
+                SMTPReply reply = receiveData(in);
+                if (reply != null)
+                    replies.append(reply);
+                continue;
+            }
+            byte b = in.get();
+            if (b != '\n') {
+                appendToLine(b);
+                continue;
+            }
+            int length = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+            lineLength = 0;
+            if (lineTooLong) {
+                lineTooLong = false;
+                replies.append(SMTPReply.LINE_TOO_LONG);
+                continue;
+            }
+            SMTPReply reply = processCommand(length);
+            if (reply != null)
+                replies.append(reply);
+        }
+    }
+
+    private void appendToLine(byte b) {
+        if (lineLength == 0)
+            lineStarted = System.nanoTime();
+        if (lineLength == line.length) {
+            if (lineLength == MAX_LINE_LENGTH) {
+                // Discard the rest of the line, it is rejected once complete
+                lineTooLong = true;
+                return;
+            }
+            line = Arrays.copyOf(line, Math.min(line.length * 2, MAX_LINE_LENGTH));
+        }
+        line[lineLength++] = b;
+    }
+
+    /**
+     * Processes a single command line received from the client, held in the line buffer.
+     *
+     * @param length The length of the line, without its line terminator.
+     * @return The reply to the command, or null if the reply is only sent once the content of a BDAT chunk is received.
+     */
+    private SMTPReply processCommand(int length) {
+        long start = System.nanoTime();
+        State previousState = state;
+        Verb verb = command.parse(line, length);
+        SMTPReply reply;
+        if (verb == null)
+            reply = SMTPReply.INVALID_COMMAND;
+        else if (!ACCEPTED_STATES.get(verb).contains(state))
+            reply = SMTPReply.BAD_SEQUENCE;
+        else
+            reply = HANDLERS.get(verb).handle(this);
+        Metrics.SMTP.recordCommand(verb != null ? verb.name() : null, System.nanoTime() - start);
+        if (EventLog.isEnabled(EventLog.Level.DEBUG)) {
+            EventLog.log(EventLog.Level.DEBUG, "smtp", id, remote, "command",
+                    verb != null ? verb.name() : command.getVerbText(CHARSET), replyCode(reply), null);
+            if (state != previousState)
+                EventLog.log(EventLog.Level.DEBUG, "smtp", id, remote, "state", state.name(), EventLog.NO_CODE, null);
+        }
+        return reply;
+    }
+
+    private static void on(Verb verb, Set<State> states, Handler handler) {
+        HANDLERS.put(verb, handler);
+        ACCEPTED_STATES.put(verb, states);
+    }
+
+    private static int replyCode(SMTPReply reply) {
+        return reply != null ? reply.getCode() : EventLog.NO_CODE;
+    }
+
+    private SMTPReply hello() {
+        resetTransaction();
+        return SMTPReply.helo();
+    }
+
+    private SMTPReply extendedHello() {
+        resetTransaction();
+        return SMTPReply.ehlo();
+    }
+
+    private SMTPReply reset() {
+        resetTransaction();
+        return SMTPReply.OK;
+    }
+
+    /**
+     * Aborts the current mail transaction, if any, discarding its recipients and the chunks received so far. Done by
+     * RSET, but also by HELO and EHLO (RFC 5321, section 4.1.4).
+     */
+    private void resetTransaction() {
+        abortChunks();
+        state = State.READY;
+        to.clear();
+    }
+
+    private SMTPReply verify() {
+        if (command.getArgumentCount() < 1)
+            return SMTPReply.INVALID_ARGUMENT;
+        if (Mailbox.isValidUser(command.getArgument(0, CHARSET)))
+            return SMTPReply.OK;
+        return SMTPReply.INVALID_USER;
+    }
+
+    private SMTPReply noop() {
+        return SMTPReply.OK;
+    }
+
+    private SMTPReply quit() {
+        closed = true;
+        return SMTPReply.CLOSING;
+    }
+
+    private SMTPReply mail() {
+        if (command.getArgumentCount() < 1)
+            return SMTPReply.INVALID_SYNTAX;
+        int parameters = command.parsePath("FROM:");
+        if (parameters < 0)
+            return SMTPReply.INVALID_ARGUMENT;
+        boolean binary = false;
+        long declared = 0;
+        for (int i = parameters; i < command.getArgumentCount(); i++) {
+            if (command.argumentEquals(i, "BODY=BINARYMIME")) {
+                binary = true;
+            } else if (command.argumentStartsWith(i, "SIZE=")) {
+                long size = command.argumentAsNumber(i, "SIZE=".length());
+                if (size < 0)
+                    return SMTPReply.INVALID_ARGUMENT;
+                if (size > maxMessageSize)
+                    return SMTPReply.MESSAGE_TOO_LARGE;
+                declared = size;
+            } else if (!command.argumentEquals(i, "BODY=7BIT") && !command.argumentEquals(i, "BODY=8BITMIME"))
+                return SMTPReply.PARAMETERS_NOT_RECOGNIZED;
+        }
+        binaryBody = binary;
+        declaredSize = declared;
+        sender = command.getPath(CHARSET);
+        EventLog.log(EventLog.Level.INFO, "smtp", id, remote, "mail-from", sender, EventLog.NO_CODE, null);
+        state = State.MAIL;
+        return SMTPReply.OK;
+    }
+
+    private SMTPReply recipient() {
+        if (chunkWriter != null)
+            return SMTPReply.BAD_SEQUENCE;
+        if (command.getArgumentCount() < 1)
+            return SMTPReply.INVALID_SYNTAX;
+        int parameters = command.parsePath("TO:");
+        if (parameters < 0)
+            return SMTPReply.INVALID_ARGUMENT;
+        if (parameters < command.getArgumentCount())
+            return SMTPReply.RCPT_PARAMETERS_NOT_RECOGNIZED;
+        String username = command.getPath(CHARSET);
+        if (!Mailbox.isValidUser(username))
+            return SMTPReply.USER_NOT_FOUND;
+        SMTPReply quotaReply = checkQuota(username);
+        if (quotaReply != null) {
+            EventLog.log(EventLog.Level.INFO, "smtp", id, remote, "over-quota", username, quotaReply.getCode(), null);
+            return quotaReply;
+        }
+        try {
+            to.add(new Mailbox(username));
+        } catch (Mailbox.InvalidUserException e) {
+            // Removed by a reload of the users database since it was checked
+            return SMTPReply.USER_NOT_FOUND;
+        }
+        state = State.RCPT;
+        return SMTPReply.OK;
+    }
+
+    /**
+     * Checks that a recipient's mailbox has room for the message, from the storage it currently uses and the size
+     * declared by the client, if any. The message is refused permanently if it could never fit in the mailbox, and
+     * temporarily if the mailbox is full, as it may be emptied by the user before the client tries again.
+     *
+     * @param username The recipient's address.
+     * @return The reply refusing the recipient, or null if the message fits.
+     */
+    private SMTPReply checkQuota(String username) {
+        long quota = Quotas.getQuota(username);
+        if (quota == Quotas.UNLIMITED)
+            return null;
+        if (declaredSize > quota)
+            return SMTPReply.QUOTA_EXCEEDED;
+        long usage = Quotas.getUsage(username);
+        return usage >= quota || usage + declaredSize > quota ? SMTPReply.MAILBOX_FULL : null;
+    }
+
+    private SMTPReply data() {
+        if (chunkWriter != null)
+            return SMTPReply.BAD_SEQUENCE;
+        if (binaryBody)
+            return SMTPReply.BINARY_REQUIRES_BDAT;
+        if (DeliveryQueue.isFull())
+            return SMTPReply.INSUFFICIENT_STORAGE;
+        try {
+            dataWriter = new MailWriter(to);
+            messageSize = 0;
+        } catch (IOException e) {
+            return SMTPReply.LOCAL_ERROR;
+        }
+        if (dataBuffer == null)
+            dataBuffer = ByteBuffer.allocate(MailWriter.BUFFER_SIZE);
+        return SMTPReply.START_MAIL_INPUT;
+    }
+
+    /**
+     * Processes a BDAT command. The content of the chunk that follows is copied as is into the message, and the reply
+     * is only sent once all of it has been received. The content is received (and discarded) even if the command is
+     * rejected, as the client sends it without waiting for a reply.
+     */
+    private SMTPReply chunk() {
+        int arguments = command.getArgumentCount();
+        if (arguments < 1 || arguments > 2 || (arguments == 2 && !command.argumentEquals(1, "LAST")))
+            return SMTPReply.BDAT_SYNTAX;
+        long size = command.argumentAsNumber(0);
+        if (size < 0)
+            return SMTPReply.INVALID_CHUNK_SIZE;
+
+        chunkSize = size;
+        chunkRemaining = size;
+        lastChunk = arguments == 2;
+        if (state != State.RCPT) {
+            chunkError = SMTPReply.BAD_SEQUENCE;
+        } else if ((chunkWriter != null ? messageSize : 0) + size > maxMessageSize) {
+            failChunks(SMTPReply.MESSAGE_TOO_LARGE);
+        } else if (chunkWriter == null && DeliveryQueue.isFull()) {
+            failChunks(SMTPReply.INSUFFICIENT_STORAGE);
+        } else if (chunkWriter == null) {
+            try {
+                chunkWriter = new MailWriter(to);
+                messageSize = 0;
+            } catch (IOException e) {
+                failChunks(SMTPReply.LOCAL_ERROR);
+            }
+        }
+        return size == 0 ? completeChunk() : null;
+    }
+
+    /**
+     * Copies the content of the current BDAT chunk available in the input buffer into the message.
+     */
+    private void receiveChunk(ByteBuffer in) {
+        int length = (int) Math.min(in.remaining(), chunkRemaining);
+        if (chunkError == null) {
+            try {
+                chunkWriter.write(in.slice(in.position(), length));
+            } catch (IOException e) {
+                failChunks(SMTPReply.LOCAL_ERROR);
+            }
+        }
+        in.position(in.position() + length);
+        chunkRemaining -= length;
+        messageSize += length;
+    }
+
+    /**
+     * Builds the reply once the content of a BDAT chunk has been received, completing the message if it was the last
+     * chunk.
+     *
+     * @return The reply to the BDAT command, or null if the message was completed and its reply is held back until it
+     *         is durable.
+     */
+    private SMTPReply completeChunk() {
+        if (chunkError != null) {
+            SMTPReply reply = chunkError;
+            chunkError = null;
+            return reply;
+        }
+        if (!lastChunk)
+            return new SMTPReply("250 " + chunkSize + " octets received");
+        MailWriter writer = chunkWriter;
+        chunkWriter = null;
+        state = State.READY;
+        to.clear();
+        commit(writer, new SMTPReply("250 Message OK, " + messageSize + " octets received"));
+        return null;
+    }
+
+    /**
+     * Fails the current BDAT chunk, and discards the message and its recipients, so the chunks that follow are rejected
+     * too instead of being delivered as an incomplete message.
+     *
+     * @param reply The reply to the current chunk.
+     */
+    private void failChunks(SMTPReply reply) {
+        resetTransaction();
+        chunkError = reply;
+    }
+
+    /**
+     * Discards a message being received with BDAT, if any.
+     */
+    private void abortChunks() {
+        if (chunkWriter != null) {
+            chunkWriter.abort();
+            chunkWriter = null;
+        }
+    }
+
+    /**
+     * Saves the mail content available in the input buffer, and completes the message if the terminating line is
+     * found. Once the message exceeds the maximum size, the part already saved is discarded, and the rest of the
+     * content is received without being saved.
+     *
+     * @return The reply to the DATA command if the message is complete, or null if more content is expected.
+     */
+    private SMTPReply receiveData(ByteBuffer in) throws IOException {
+        boolean complete = dataDecoder.decode(in, dataBuffer);
+        dataBuffer.flip();
+        messageSize += dataBuffer.remaining();
+        if (!messageTooLarge && messageSize > maxMessageSize) {
+            messageTooLarge = true;
+            dataWriter.abort();
+        }
+        if (!messageTooLarge)
+            dataWriter.write(dataBuffer);
+        dataBuffer.clear();
+        if (!complete)
+            return null;
+        if (messageTooLarge) {
+            messageTooLarge = false;
+            dataWriter = null;
+            state = State.READY;
+            to.clear();
+            EventLog.log(EventLog.Level.INFO, "smtp", id, remote, "message", null,
+                    SMTPReply.MESSAGE_TOO_LARGE.getCode(), null);
+            return SMTPReply.MESSAGE_TOO_LARGE;
+        }
+        commit(dataWriter, SMTPReply.OK);
+        dataWriter = null;
+        state = State.READY;
+        to.clear();
+        return null;
+    }
+
+    /**
+     * Delivers a complete message, holding back its reply until the message is durable.
+     */
+    private void commit(MailWriter writer, SMTPReply reply) {
+        Metrics.SMTP.recordMessage(messageSize);
+        pendingCommit = writer.closeAsync();
+        pendingReply = reply;
+    }
+
+    /**
+     * Returns the commit of the last message received, while its reply is held back. Until
+     * <code>completeCommit()</code> is called, no further input is processed.
+     *
+     * @return A future completed once the message is durable, or null if no message is waiting for its commit.
+     */
+    public CompletableFuture<Void> getPendingCommit() {
+        return pendingCommit;
+    }
+
+    /**
+     * Appends the reply to the last message received, waiting for its commit to complete if needed, and resumes
+     * processing input.
+     *
+     * @param replies The buffer to which the reply, including its line terminator, is appended.
+     */
+    public void completeCommit(SMTPReply.Buffer replies) {
+        if (pendingCommit == null)
+            return;
+        SMTPReply reply;
+        try {
+            pendingCommit.join();
+            reply = pendingReply;
+        } catch (CompletionException | CancellationException e) {
+            if (e.getCause() instanceof DeliveryQueue.QueueFullException)
+                reply = SMTPReply.INSUFFICIENT_STORAGE;
+            else
+                reply = SMTPReply.LOCAL_ERROR;
+        }
+        replies.append(reply);
+        Metrics.SMTP.addBytesOut(reply.length());
+        EventLog.log(EventLog.Level.INFO, "smtp", id, remote, "message", null, reply.getCode(), null);
+        pendingCommit = null;
+        pendingReply = null;
+    }
+
+    /**
+     * Releases any resources held by the session, such as a message that was still being received when the
+     * connection was terminated.
+     */
+    public void close() {
+        closed = true;
+        if (!released) {
+            released = true;
+            Metrics.SMTP.sessionClosed();
+            EventLog.log(EventLog.Level.INFO, "smtp", id, remote, "disconnect", null, EventLog.NO_CODE, null);
+        }
+        if (dataWriter != null) {
+            // The message is incomplete, so it is not delivered
+            dataWriter.abort();
+            dataWriter = null;
+            dataDecoder.reset();
+        }
+        abortChunks();
+    }
+
+}
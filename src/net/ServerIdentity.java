@@ -0,0 +1,71 @@
+package net;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Name under which the server identifies itself, e.g., in the SMTP greeting and the replies to HELO and EHLO. Looking
+ * up the name may block on DNS, or even start a process, so it is resolved once at startup and, optionally, refreshed
+ * by a background thread; connections only ever read the cached name.
+ */
+public class ServerIdentity {
+
+    private static volatile String hostName = null;
+    private static ScheduledExecutorService refresher = null;
+
+    private ServerIdentity() {
+    }
+
+    /**
+     * Resolves the name of the current host and, if a refresh interval is given, starts refreshing it in the
+     * background.
+     *
+     * @param refreshSeconds The interval between lookups, in seconds, or 0 to never look up the name again.
+     */
+    public static synchronized void start(int refreshSeconds) {
+        hostName = lookUpHostName();
+        if (refreshSeconds <= 0 || refresher != null)
+            return;
+        refresher = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "hostname-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        refresher.scheduleWithFixedDelay(() -> hostName = lookUpHostName(), refreshSeconds, refreshSeconds,
+                TimeUnit.SECONDS);
+    }
+
+    /**
+     * Returns the name of the current host, resolving it if <code>start()</code> was not called.
+     *
+     * @return The name of the current host.
+     */
+    public static String getHostName() {
+        String name = hostName;
+        if (name == null) {
+            synchronized (ServerIdentity.class) {
+                if (hostName == null)
+                    hostName = lookUpHostName();
+                name = hostName;
+            }
+        }
+        return name;
+    }
+
+    private static String lookUpHostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            try (BufferedReader reader = Runtime.getRuntime().exec(new String[] {"hostname"}).inputReader()) {
+                String name = reader.readLine();
+                return name != null ? name : "unknown_host";
+            } catch (IOException ex) {
+                return "unknown_host";
+            }
+        }
+    }
+}
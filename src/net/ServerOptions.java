@@ -0,0 +1,93 @@
+package net;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Command-line options shared by the SMTP and POP3 servers. The first argument is always the listening port, and may
+ * be followed by any number of options in the form <code>--name</code> or <code>--name=value</code>.
+ */
+public class ServerOptions {
+
+    private final int port;
+    private final Map<String, String> options = new HashMap<>();
+
+    /**
+     * Parses the command-line arguments.
+     *
+     * @param args    The command-line arguments.
+     * @param allowed The names of the options accepted by the server, without the leading dashes.
+     * @throws RuntimeException If the port is missing or an option is not recognized.
+     */
+    public ServerOptions(String[] args, String... allowed) {
+        if (args.length < 1 || args[0].startsWith("--"))
+            throw new RuntimeException("This application must be executed with the listening port as its first"
+                    + " argument, optionally followed by options.");
+        this.port = Integer.parseInt(args[0]);
+        for (int i = 1; i < args.length; i++) {
+            if (!args[i].startsWith("--"))
+                throw new RuntimeException("Invalid option: " + args[i]);
+            String[] split = args[i].substring(2).split("=", 2);
+            boolean known = false;
+            for (String name : allowed)
+                known |= name.equals(split[0]);
+            if (!known)
+                throw new RuntimeException("Unknown option: " + args[i]);
+            options.put(split[0], split.length > 1 ? split[1] : null);
+        }
+    }
+
+    /**
+     * Returns the listening port.
+     *
+     * @return The port number given as the first argument.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Returns true if the option was given, with or without a value.
+     *
+     * @param name The option name, without the leading dashes.
+     * @return true if the option is present, and false otherwise.
+     */
+    public boolean has(String name) {
+        return options.containsKey(name);
+    }
+
+    /**
+     * Returns the value of an option.
+     *
+     * @param name         The option name, without the leading dashes.
+     * @param defaultValue The value to return if the option was not given, or was given without a value.
+     * @return The option value.
+     */
+    public String get(String name, String defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    /**
+     * Returns the value of a numeric option.
+     *
+     * @param name         The option name, without the leading dashes.
+     * @param defaultValue The value to return if the option was not given, or was given without a value.
+     * @return The option value.
+     */
+    public int getInt(String name, int defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    /**
+     * Returns the value of a numeric option that may exceed the range of an int, such as a size in bytes.
+     *
+     * @param name         The option name, without the leading dashes.
+     * @param defaultValue The value to return if the option was not given, or was given without a value.
+     * @return The option value.
+     */
+    public long getLong(String name, long defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+}
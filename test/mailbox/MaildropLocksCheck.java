@@ -0,0 +1,88 @@
+package mailbox;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Behavioural check of <code>MaildropLocks</code> under contention: many threads, each with its own Mailbox object for
+ * the same user, repeatedly try to lock the maildrop, and the check fails if two of them ever hold it at once, if a
+ * holder cannot lock it again, or if a thread that does not hold the lock releases it. Meanwhile, a second user's lock
+ * must always be available. Mailbox objects require a users database, so the check writes its own
+ * <code>users.txt</code>, and must be run from an empty directory, e.g.,
+ * <code>cd $(mktemp -d) &amp;&amp; java -cp out mailbox.MaildropLocksCheck</code>. Exits with status 1 on failure.
+ */
+public class MaildropLocksCheck {
+
+    private static final String USER = "locked@example.com";
+    private static final String OTHER_USER = "other@example.com";
+    private static final int THREADS = 16;
+    private static final int ITERATIONS = 200_000;
+
+    private static final AtomicInteger holders = new AtomicInteger();
+    private static final AtomicLong acquired = new AtomicLong();
+    private static volatile String failure = null;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        File users = new File(Mailbox.USER_FILE_NAME);
+        if (users.exists()) {
+            System.out.println("FAILED " + users.getAbsolutePath() + " exists, run from an empty directory");
+            System.exit(1);
+        }
+        users.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(users)) {
+            out.print(USER + " password\n" + OTHER_USER + " password\n");
+        }
+
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            Mailbox owner = new Mailbox(USER);
+            threads[i] = new Thread(() -> hammer(owner, start), "locker-" + i);
+            threads[i].start();
+        }
+        Mailbox other = new Mailbox(OTHER_USER);
+        start.countDown();
+        for (int i = 0; i < ITERATIONS && failure == null; i++) {
+            if (!MaildropLocks.tryLock(OTHER_USER, other))
+                failure = "the lock of another user was not available";
+            MaildropLocks.unlock(OTHER_USER, other);
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        if (failure == null && acquired.get() == 0)
+            failure = "the lock was never acquired";
+        if (failure == null && !MaildropLocks.tryLock(USER, new Mailbox(USER)))
+            failure = "the lock was not released at the end";
+        if (failure != null) {
+            System.out.println("FAILED " + failure);
+            System.exit(1);
+        }
+        System.out.println("OK " + acquired.get() + " acquisitions by " + THREADS + " threads");
+    }
+
+    private static void hammer(Mailbox owner, CountDownLatch start) {
+        try {
+            start.await();
+        } catch (InterruptedException e) {
+            return;
+        }
+        for (int i = 0; i < ITERATIONS && failure == null; i++) {
+            if (!MaildropLocks.tryLock(USER, owner)) {
+                // Not the holder, so this must not release the lock of the thread that holds it
+                MaildropLocks.unlock(USER, owner);
+                continue;
+            }
+            if (holders.incrementAndGet() != 1)
+                failure = "two mailboxes held the lock at once";
+            if (!MaildropLocks.tryLock(USER, owner))
+                failure = "the holder could not lock again";
+            acquired.incrementAndGet();
+            holders.decrementAndGet();
+            MaildropLocks.unlock(USER, owner);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package net;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Behavioural check of <code>DotStuffing</code>: content is encoded to the wire format and decoded back, with the
+ * input split at every offset and with output buffers of every small size, since CRLF and leading dots split across
+ * buffers are where the state machines can go wrong. Run with <code>java -cp out net.DotStuffingCheck</code>; exits
+ * with status 1 on the first failure.
+ */
+public class DotStuffingCheck {
+
+    private static final String[] SAMPLES = {
+            "",
+            "Subject: test\r\n\r\nbody\r\n",
+            ".\r\n",
+            "..\r\n.\r\n...\r\n",
+            ".leading dot\r\nmiddle . dot\r\n.\r\nafter\r\n",
+            "no final terminator",
+            "bare\rCR\r\r\nand CR before dot\r.\r\n",
+            "\r\n\r\n.\r\n\r\n",
+    };
+    private static final byte[] NEXT_COMMAND = "QUIT\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private static int checks = 0;
+
+    public static void main(String[] args) {
+        for (String sample : SAMPLES) {
+            byte[] stored = bytes(sample);
+            byte[] expected = sample.isEmpty() || sample.endsWith("\r\n") ? stored : bytes(sample + "\r\n");
+            byte[] wire = encode(stored, stored.length, 64);
+            for (int split = 0; split <= stored.length; split++)
+                check(Arrays.equals(encode(stored, split, 64), wire), "encoding split at " + split, sample);
+            byte[] received = concat(wire, NEXT_COMMAND);
+            for (int split = 0; split <= received.length; split++) {
+                for (int outSize = 2; outSize <= 5; outSize++)
+                    checkDecode(received, split, outSize, expected, sample);
+            }
+        }
+        // Bare LF line terminators are normalized to CRLF, including the terminating line
+        byte[] received = concat(bytes("a\n.b\nc\r\n.\n"), NEXT_COMMAND);
+        for (int split = 0; split <= received.length; split++)
+            checkDecode(received, split, 2, bytes("a\r\nb\r\nc\r\n"), "bare LF");
+        System.out.println("OK " + checks + " checks");
+    }
+
+    /**
+     * Encodes stored content in two parts, split at the given offset, through an output buffer of the given size.
+     */
+    private static byte[] encode(byte[] stored, int split, int outSize) {
+        DotStuffing.Encoder encoder = new DotStuffing.Encoder();
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        ByteBuffer out = ByteBuffer.allocate(outSize);
+        for (ByteBuffer in : new ByteBuffer[] {ByteBuffer.wrap(stored, 0, split),
+                ByteBuffer.wrap(stored, split, stored.length - split)}) {
+            while (in.hasRemaining()) {
+                encoder.encode(in, out);
+                drain(out, wire);
+            }
+        }
+        encoder.finish(out);
+        drain(out, wire);
+        return wire.toByteArray();
+    }
+
+    /**
+     * Decodes wire content followed by the next command, split at the given offset, and checks that the content is
+     * restored and that the input is left at the start of the next command.
+     */
+    private static void checkDecode(byte[] received, int split, int outSize, byte[] expected, String sample) {
+        DotStuffing.Decoder decoder = new DotStuffing.Decoder();
+        ByteArrayOutputStream stored = new ByteArrayOutputStream();
+        ByteBuffer out = ByteBuffer.allocate(outSize);
+        ByteBuffer first = ByteBuffer.wrap(received, 0, split);
+        ByteBuffer second = ByteBuffer.wrap(received, split, received.length - split);
+        boolean complete = false;
+        ByteBuffer in = first;
+        while (!complete) {
+            if (!in.hasRemaining()) {
+                if (in == second)
+                    break;
+                in = second;
+            }
+            complete = decoder.decode(in, out);
+            drain(out, stored);
+        }
+        String where = "decoding split at " + split + " with " + outSize + "-byte output";
+        check(complete, where + ": terminating line not found", sample);
+        check(Arrays.equals(stored.toByteArray(), expected), where + ": content differs", sample);
+        int rest = first.remaining() + second.remaining();
+        check(rest == NEXT_COMMAND.length, where + ": " + rest + " bytes left instead of the next command", sample);
+    }
+
+    private static void drain(ByteBuffer out, ByteArrayOutputStream to) {
+        out.flip();
+        to.write(out.array(), 0, out.limit());
+        out.clear();
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static void check(boolean condition, String description, String sample) {
+        checks++;
+        if (!condition) {
+            System.out.println("FAILED " + description + " for " + Arrays.toString(bytes(sample)));
+            System.exit(1);
+        }
+    }
+}